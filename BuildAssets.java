@@ -10,20 +10,73 @@
  * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
  */
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.io.BufferedWriter;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
@@ -37,17 +90,26 @@ import java.io.StringWriter;
  * % java BuildAssets AssetImage <package>.<class_name>.dart
  * -> with command: % java BuildAssets AssetImage local.manager.all_assets.dart
  * to gen file all_assets.dart into folder lib/local/manager/, the file is included static class AllAssets
+ * % java BuildAssets pubspec AssetImage <package>.<class_name>.dart JSON <package>.<class_name>.dart
+ * -> scan assets/ once and write every listed output
+ * % java BuildAssets --config [file]
+ * -> read the targets from a file, one per line, build_assets.config by default
+ * % java BuildAssets watch [targets]
+ * -> keep running and regenerate the outputs whenever files are added, removed or renamed in assets/
+ * % java BuildAssets benchmark [number_of_files ...]
+ * -> measure every stage on synthetic asset trees, 1000, 10000 and 100000 files by default
+ * % java BuildAssets pub search <words> | pub add <package>
+ * -> search the bundled pub.dev catalog, or add a package to the dependencies of pubspec.yaml
  */
 public class BuildAssets {
 
     private static final String BUILD_GN_TOKEN_START = "# === Generated Code Start ===";
     private static final String BUILD_GN_TOKEN_END = "# === Generated Code End ===";
-    private static final String BUILD_GN_TOKEN = String.format("%s(.*)%s", BUILD_GN_TOKEN_START, BUILD_GN_TOKEN_END);
-    private static final Pattern BUILD_GN_GEN_PATTERN = Pattern.compile(BUILD_GN_TOKEN, Pattern.DOTALL);
 
     private static final String ASSETS_FOLDER = "assets";
     private static final String ASSETS_FOLDER_NOT_FOUND = "Assets folder not found";
     private static final String ASSETS_FOLDER_EMPTY_FILE = "Assets folder is empty";
+    private static final String ASSETS_UP_TO_DATE = "Assets are up to date";
     private static final String DATE_FORMAT = "dd/MM/yyyy HH:mm:ss:SSS";
     private static final String START = "START ! ";
     private static final String FINISH = "FINISH! ";
@@ -56,6 +118,8 @@ public class BuildAssets {
     private static final String DEFINE_ASSETS_LINE = "  assets:\n";
     private static final String PUBSPEC_FILE_NAME = "pubspec.yaml";
     private static final String ONE_LINE_RES_PATH_FORMAT = "    - %s\n";
+    private static final String ONE_LINE_RES_DIRECTORY_FORMAT = "    - %s/\n";
+    private static final Pattern RESOLUTION_VARIANT_FOLDER = Pattern.compile("\\d+(\\.\\d+)?x");
     private static final String GN_TOKEN_NOT_FOUND = String.format("The pubspec.yaml must be defined:\n%s\n%s",
             BUILD_GN_TOKEN_START, BUILD_GN_TOKEN_END);
 
@@ -64,6 +128,7 @@ public class BuildAssets {
             "exr",
             "gif",
             "jpeg",
+            "jpg",
             "png",
             "psd",
             "pvrtc",
@@ -74,15 +139,25 @@ public class BuildAssets {
     };
     private static final String ARG_GEN_CODE_ASSET_IMAGE = "AssetImage";
     private static final String ARG_GEN_CODE_JSON = "JSON";
+    private static final String ARG_WATCH = "watch";
+    private static final String ARG_BENCHMARK = "benchmark";
+    private static final String ARG_MONOREPO = "monorepo";
+    private static final String ARG_DAEMON = "daemon";
+    private static final String ARG_CLIENT = "client";
+    private static final String ARG_PUB = "pub";
+    private static final String ARG_PUBSPEC = "pubspec";
+    private static final String ARG_CONFIG = "--config";
+    private static final String DEFAULT_CONFIG_FILE = "build_assets.config";
+    private static final String CONFIG_COMMENT = "#";
+    private static final String DUPLICATE_OUTPUT = "The output is defined twice: %s";
     private static final String DART_FILE = ".dart";
     private static final String TEMP_DART_FILE = "*dart";
     private static final String GEN_CODE_STATIC = "  static final %s = %s";
+    private static final String GEN_CODE_STATIC_CONST = "  static const %s = %s";
     private static final String IMAGE_FILE_PATH_CODE_FORMAT = "'%s';";
 
     private static final String BUILD_DART_TOKEN_START = "// === Generated Code Start ===";
     private static final String BUILD_DART_TOKEN_END = "// === Generated Code End ===";
-    private static final String BUILD_DART_TOKEN = String.format("%s(.*)%s", BUILD_DART_TOKEN_START, BUILD_DART_TOKEN_END);
-    private static final Pattern BUILD_DART_GEN_PATTERN = Pattern.compile(BUILD_DART_TOKEN, Pattern.DOTALL);
     private static final String DART_TOKEN_NOT_FOUND = String.format("The class file is defined:\n%s\n%s",
             BUILD_DART_TOKEN_START, BUILD_DART_TOKEN_END);
     private static final String PATH_LIB_FORMAT = "lib/%s";
@@ -91,48 +166,128 @@ public class BuildAssets {
 
     public static void main(String[] args) {
 
-        final AssetsResult assetsResult = readFolderAssetsContent();
-        if (assetsResult == null) return;
+        if (args.length > 0 && ARG_DAEMON.equals(args[0])) {
+            System.exit(AssetDaemon.serve(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        if (args.length > 0 && ARG_CLIENT.equals(args[0])) {
+            System.exit(AssetDaemon.send(Arrays.copyOfRange(args, 1, args.length)));
+        }
 
-        if (args.length == 0) {
-            PubspecYaml.updatePubspecYamlFile(assetsResult);
-            return;
+        final int status = run(args, Paths.get("").toAbsolutePath(), null);
+        if (status != 0) {
+            System.exit(status);
         }
+    }
 
-        if (args.length == 1) {
-            System.out.println(GUIDE);
-            return;
+    /**
+     * Returns the exit status of the command run in the folder cwd. scanResults keeps the scan of
+     * each project between runs, it is null outside the daemon.
+     */
+    private static int run(final String[] args, final Path cwd, final Map<String, AssetsResult> scanResults) {
+        if (args.length > 0 && ARG_BENCHMARK.equals(args[0])) {
+            AssetBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+            return 0;
         }
-        if (args.length == 2) {
-            final String arg = args[1].trim();
-            if (!arg.endsWith(DART_FILE)) {
-                System.out.println(GUIDE);
-                return;
-            }
-            final String[] splitArg = arg.split("\\.");
-            final int splitArgLength = splitArg.length;
-            final String className = formatClassName(splitArg[splitArgLength - 2]);
-
-            if (ARG_GEN_CODE_ASSET_IMAGE.equals(args[0])) {
-                DartFileCreater.genDartFile(
-                        arg,
-                        AssetImage.createTemplateContent(className, assetsResult.imageObjects),
-                        AssetImage.createAssetImageDartCode(assetsResult.imageObjects)
-                );
-                return;
-            }
 
-            if (ARG_GEN_CODE_JSON.equals(args[0])) {
-                DartFileCreater.genDartFile(
-                        arg,
-                        JsonFile.createTemplateContent(className, assetsResult.jsonItemList),
-                        JsonFile.createJsonDartCode(assetsResult.jsonItemList)
-                );
-                return;
-            }
+        if (args.length > 0 && ARG_MONOREPO.equals(args[0])) {
+            return MonorepoBuild.run(Arrays.copyOfRange(args, 1, args.length), cwd);
+        }
+
+        if (args.length > 0 && ARG_PUB.equals(args[0])) {
+            return PubCatalog.run(Arrays.copyOfRange(args, 1, args.length), cwd);
+        }
 
+        final boolean watch = args.length > 0 && ARG_WATCH.equals(args[0]);
+        if (watch && scanResults != null) {
+            System.out.println(AssetDaemon.NOT_IN_DAEMON);
+            return 1;
+        }
+        final BuildOptions options = BuildOptions.parse(watch ? Arrays.copyOfRange(args, 1, args.length) : args, cwd);
+        if (options == null) {
             System.out.println(GUIDE);
-            return;
+            return 0;
+        }
+
+        if (watch) {
+            AssetWatcher.watch(options);
+            return 0;
+        }
+
+        return build(options, scanResults) == BuildStatus.FAILED ? 1 : 0;
+    }
+
+    private enum BuildStatus {
+        GENERATED,
+        UP_TO_DATE,
+        NO_ASSETS,
+        FAILED
+    }
+
+    /**
+     * Builds the project of options.projectDir. With scanResults, the scan of the last successful
+     * build is reused when the manifest shows that the assets did not change but an output did.
+     */
+    private static BuildStatus build(final BuildOptions options, final Map<String, AssetsResult> scanResults) {
+        final BuildMetrics metrics = BuildMetrics.create(options);
+        final BuildCache buildCache = BuildCache.load(options.projectDir, options.describe(),
+                options.dependsOnFileContent());
+        if (buildCache.isUpToDate()) {
+            metrics.out().println(ASSETS_UP_TO_DATE);
+            metrics.upToDate = true;
+            metrics.report(options);
+            return BuildStatus.UP_TO_DATE;
+        }
+
+        final String scanKey = options.projectDir + "\n" + options.describe();
+        AssetsResult assetsResult = scanResults != null && buildCache.areAssetsUnchanged()
+                ? scanResults.get(scanKey) : null;
+        if (assetsResult == null) {
+            assetsResult = readFolderAssetsContent(options.projectDir, options, metrics);
+        }
+        if (assetsResult == null) return BuildStatus.NO_ASSETS;
+        if (assetsResult.invalid) return BuildStatus.FAILED;
+
+        final boolean generated = generate(options.targets, assetsResult, buildCache, metrics);
+        if (generated) {
+            buildCache.save(assetsResult.assetTree, metrics);
+            if (scanResults != null) scanResults.put(scanKey, assetsResult);
+        }
+        metrics.report(options);
+        return generated ? BuildStatus.GENERATED : BuildStatus.FAILED;
+    }
+
+    /**
+     * Renders and writes every target from the same scan, one thread per target.
+     * Returns true when all outputs are written or already up to date.
+     */
+    private static boolean generate(final List<BuildTarget> targets,
+                                    final AssetsResult assetsResult,
+                                    final BuildCache buildCache,
+                                    final BuildMetrics metrics) {
+        if (targets.size() == 1) {
+            return targets.get(0).generate(assetsResult, buildCache, metrics);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(targets.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            final List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (final BuildTarget target : targets) {
+                tasks.add(() -> target.generate(assetsResult, buildCache, metrics));
+            }
+            boolean generated = true;
+            for (final Future<Boolean> future : executor.invokeAll(tasks)) {
+                generated &= future.get();
+            }
+            return generated;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            metrics.err().format("Exception: %s%n", e.getCause());
+            return false;
+        } finally {
+            executor.shutdown();
         }
     }
 
@@ -152,115 +307,369 @@ public class BuildAssets {
         writeFileWithString(Paths.get(fileName), content);
     }
 
-    private static final List<String> allFileInAssets() {
-        final String directoryProject = new File("").getAbsolutePath();
-        final File folderAssets = new File(directoryProject, ASSETS_FOLDER);
-        if (!folderAssets.exists()) {
-            System.out.println(ASSETS_FOLDER_NOT_FOUND);
+    private static final AssetTree allFileInAssets(final Path directoryProject, final AssetIgnore assetIgnore,
+                                                   final BuildMetrics metrics) {
+        final Path folderAssets = directoryProject.resolve(ASSETS_FOLDER);
+        if (!Files.isDirectory(folderAssets)) {
+            metrics.out().println(ASSETS_FOLDER_NOT_FOUND);
             return null;
         }
 
-        final List<String> allFileInAssets = new ArrayList<>();
-        search(folderAssets, allFileInAssets);
-        return allFileInAssets;
+        try {
+            return AssetScanner.scan(folderAssets, ASSETS_FOLDER, assetIgnore);
+        } catch (IOException e) {
+            metrics.err().format("Exception: %s%n", e);
+            return null;
+        }
     }
 
-    private static AssetsResult readFolderAssetsContent() {
-        final String directoryProject = new File("").getAbsolutePath();
-        final List<String> allFileInAssets = allFileInAssets();
-        if (allFileInAssets == null || allFileInAssets.isEmpty()) {
-            System.out.println(ASSETS_FOLDER_EMPTY_FILE);
+    private static AssetsResult readFolderAssetsContent(final Path directoryProject,
+                                                        final BuildOptions options,
+                                                        final BuildMetrics metrics) {
+        long start = System.nanoTime();
+        final AssetTree assetTree = allFileInAssets(directoryProject, options.assetIgnore(), metrics);
+        if (assetTree == null || assetTree.files.isEmpty()) {
+            metrics.out().println(ASSETS_FOLDER_EMPTY_FILE);
             return null;
         }
+        metrics.phase(BuildMetrics.PHASE_SCAN, start, assetTree.files.size());
 
-        final List<ImageObject> imageObjects = new ArrayList();
-        final List<JsonItem> jsonItemList = new ArrayList();
-        final StringBuffer textAssets = new StringBuffer(DEFINE_ASSETS_LINE);
+        start = System.nanoTime();
+        final DartIdentifier dartIdentifier = new DartIdentifier();
+        final List<AssetEntry> assetEntries = new ArrayList<>(assetTree.files.size());
+        for (final AssetFile assetFile : assetTree.files) {
+            assetEntries.add(createAssetEntry(assetFile, dartIdentifier));
+        }
+        metrics.phase(BuildMetrics.PHASE_CLASSIFY, start, assetEntries.size());
+
+        if (options.imageSizes) {
+            start = System.nanoTime();
+            metrics.phase(BuildMetrics.PHASE_PROBE, start, ImageProbe.probeAll(directoryProject, assetEntries, metrics));
+        }
+
+        if (options.dedup) {
+            start = System.nanoTime();
+            final int hashed = AssetDeduper.dedup(directoryProject, assetEntries, options.dedupCanonical, metrics);
+            metrics.phase(BuildMetrics.PHASE_DEDUP, start, hashed);
+        }
+
+        if (options.processesJson()) {
+            start = System.nanoTime();
+            final boolean valid = JsonAssets.process(directoryProject, assetEntries, options);
+            metrics.phase(BuildMetrics.PHASE_JSON, start, metrics.countCategory(assetEntries, AssetCategory.JSON));
+            if (!valid) {
+                final AssetsResult invalidResult = new AssetsResult();
+                invalidResult.invalid = true;
+                return invalidResult;
+            }
+        }
+
+        start = System.nanoTime();
+        final Set<String> partialDirectories = new HashSet<>();
+        for (final AssetDirectory directory : assetTree.directories) {
+            if (directory.partial) partialDirectories.add(directory.path);
+        }
+        final AssetsResult assetsResult = createAssetsResult(assetEntries, dartIdentifier, options, partialDirectories);
+        assetsResult.assetTree = assetTree;
+        metrics.phase(BuildMetrics.PHASE_NAME, start, assetEntries.size());
+        metrics.count(assetEntries);
+        return assetsResult;
+    }
+
+    private static AssetEntry createAssetEntry(final AssetFile assetFile, final DartIdentifier dartIdentifier) {
+        final String filePathWithoutDirectoryProject = assetFile.path;
+        final String fileNameWithExtension = assetFile.fileName;
+        final AssetEntry assetEntry = new AssetEntry();
+        assetEntry.file = assetFile;
+        assetEntry.category = AssetClassifier.classify(fileNameWithExtension);
+        assetEntry.name = dartIdentifier.encode(fileNameWithExtension, false);
+
+        if (assetEntry.category == AssetCategory.JSON) {
+            final JsonItem jsonItem = new JsonItem();
+            jsonItem.filePath = filePathWithoutDirectoryProject;
+            assetEntry.jsonItem = jsonItem;
+        } else if (assetEntry.category != null) {
+            final ImageObject item = new ImageObject();
+            item.fileName = fileNameWithExtension;
+            item.path = filePathWithoutDirectoryProject;
+            assetEntry.imageObject = item;
+        }
+
+        assetEntry.pubspecLine = String.format(ONE_LINE_RES_PATH_FORMAT, filePathWithoutDirectoryProject);
+        return assetEntry;
+    }
+
+    /**
+     * The order names are given in: files nearer to assets/ first, then in path order. A name
+     * taken by a file keeps it when another file with the same name is added deeper or later,
+     * and a disambiguated name only depends on the folders of its own file.
+     */
+    private static final Comparator<AssetEntry> NAMING_ORDER = Comparator
+            .comparingInt((AssetEntry assetEntry) -> folderDepth(assetEntry.file.path))
+            .thenComparing(assetEntry -> assetEntry.file.path, AssetScanner.PATH_ORDER);
 
-        for (final String filePath : allFileInAssets) {
-            if (filePath == null || filePath.isEmpty()) continue;
+    private static int folderDepth(final String path) {
+        int depth = 0;
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            depth++;
+        }
+        return depth;
+    }
 
-            final String filePathWithoutDirectoryProject = filePath.replace(directoryProject + "/", "");
-            final String fileNameWithExtension = getFileName(filePathWithoutDirectoryProject);
+    /**
+     * Names are given here rather than per file because a name depends on the other files of its
+     * class: the first file in NAMING_ORDER keeps the plain name, another file with the same name
+     * gets its folders. With --shard every shard is a class of its own, so names are only unique
+     * within the shard and a new file never renames a field of another shard.
+     * With collapse, pubspec.yaml lists folders instead of files, and a resolution variant such as
+     * icons/2.0x/home.png whose main asset icons/home.png exists is left to Flutter, which finds
+     * it from the main asset, so it gets neither a line nor an accessor.
+     * A copy found by AssetDeduper in canonical mode keeps its accessor, pointed at the canonical
+     * file, but is left out of pubspec.yaml, and its folder is then listed file by file, as is the
+     * folder of a JSON file bundled from its minified copy, or of a file left out by .assetignore
+     * (partialDirectories).
+     */
+    private static AssetsResult createAssetsResult(final Collection<AssetEntry> assetEntries,
+                                                   final DartIdentifier dartIdentifier,
+                                                   final BuildOptions options,
+                                                   final Set<String> ignoredDirectories) {
+        final boolean collapse = options.collapseAssets;
+        final String fieldFormat = options.shardSize != 0 ? GEN_CODE_STATIC_CONST : GEN_CODE_STATIC;
+        final Map<AssetCategory, List<ImageObject>> pathObjects = new EnumMap<>(AssetCategory.class);
+        for (final AssetCategory category : AssetCategory.values()) {
+            pathObjects.put(category, new ArrayList<>());
+        }
+        final List<JsonItem> jsonItemList = new ArrayList();
+        final StringBuffer textAssets = new StringBuffer(DEFINE_ASSETS_LINE);
+        final Set<String> paths = new HashSet<>();
+        final Set<String> partialDirectories = new HashSet<>(ignoredDirectories);
+        if (collapse) {
+            for (final AssetEntry assetEntry : assetEntries) {
+                paths.add(assetEntry.file.path);
+                if (assetEntry.duplicateOf != null || assetEntry.bundlePath != null) {
+                    partialDirectories.add(assetEntry.file.path.substring(0, assetEntry.file.path.lastIndexOf('/')));
+                }
+            }
+        }
+        String listedDirectory = null;
+        final List<AssetEntry> namedEntries = new ArrayList<>(assetEntries.size());
+        final Map<AssetEntry, String> nameScopes = new HashMap<>();
 
-            if (AssetImage.isSupportedImageFormats(filePath)) {
-                final ImageObject item = new ImageObject();
-                final String name = formatName(fileNameWithExtension);
-                final String defineAssetImage = String.format(IMAGE_FILE_PATH_CODE_FORMAT, filePathWithoutDirectoryProject);
-                item.line = String.format(GEN_CODE_STATIC, name.replaceAll("-", "_"), defineAssetImage);
-                item.fileName = fileNameWithExtension;
-                imageObjects.add(item);
-            } else if (JsonFile.isJsonFile(filePath)) {
-                final JsonItem jsonItem = new JsonItem();
-                jsonItem.filePath = filePathWithoutDirectoryProject;
-                final String name = formatName(fileNameWithExtension);
-                jsonItem.methodName = JsonFile.makeMethodName(name);
-                jsonItemList.add(jsonItem);
+        for (final AssetEntry assetEntry : assetEntries) {
+            final String filePath = assetEntry.file.path;
+            if (collapse) {
+                final int folderEnd = filePath.lastIndexOf('/');
+                final String directory = filePath.substring(0, folderEnd);
+                final int folderStart = directory.lastIndexOf('/');
+                final boolean inVariantFolder = folderStart > 0
+                        && RESOLUTION_VARIANT_FOLDER.matcher(directory.substring(folderStart + 1)).matches();
+                if (inVariantFolder) {
+                    if (paths.contains(directory.substring(0, folderStart) + filePath.substring(folderEnd))) continue;
+                    if (assetEntry.duplicateOf == null) textAssets.append(assetEntry.pubspecLine);
+                } else if (partialDirectories.contains(directory)) {
+                    if (assetEntry.duplicateOf == null) textAssets.append(assetEntry.pubspecLine);
+                } else if (!directory.equals(listedDirectory)) {
+                    listedDirectory = directory;
+                    textAssets.append(String.format(ONE_LINE_RES_DIRECTORY_FORMAT, directory));
+                }
+            } else if (assetEntry.duplicateOf == null) {
+                textAssets.append(assetEntry.pubspecLine);
+            }
+            if (assetEntry.imageObject != null) {
+                final List<ImageObject> items = pathObjects.get(assetEntry.category);
+                nameScopes.put(assetEntry, options.shardSize == 0 ? assetEntry.category.name()
+                        : assetEntry.category.name() + "/" + ShardedPathCode.group(assetEntry.imageObject,
+                        items.size(), options.shardSize));
+                items.add(assetEntry.imageObject);
+                namedEntries.add(assetEntry);
+            } else if (assetEntry.jsonItem != null) {
+                nameScopes.put(assetEntry, AssetCategory.JSON.name());
+                jsonItemList.add(assetEntry.jsonItem);
+                namedEntries.add(assetEntry);
             }
+        }
 
-            final String oneLineOnSpec = String.format(ONE_LINE_RES_PATH_FORMAT, filePathWithoutDirectoryProject);
-            textAssets.append(oneLineOnSpec);
+        namedEntries.sort(NAMING_ORDER);
+        final Map<String, Map<String, String>> usedNames = new HashMap<>();
+        for (final AssetEntry assetEntry : namedEntries) {
+            final String filePath = assetEntry.file.path;
+            final Map<String, String> scopeNames = usedNames.computeIfAbsent(nameScopes.get(assetEntry),
+                    scope -> new HashMap<>());
+            final String path = assetEntry.duplicateOf != null
+                    ? assetEntry.duplicateOf.bundlePath() : assetEntry.bundlePath();
+            if (assetEntry.imageObject != null) {
+                final ImageObject item = assetEntry.imageObject;
+                final String defineAssetImage = String.format(IMAGE_FILE_PATH_CODE_FORMAT, DartIdentifier.escape(path));
+                if (item.width > 0 && item.height > 0) {
+                    final String name = dartIdentifier.unique(assetEntry.name, filePath,
+                            scopeNames, null, ImageProbe.SIZE_SUFFIXES);
+                    item.line = String.format(fieldFormat, name, defineAssetImage) + "\n"
+                            + ImageProbe.createSizeDartCode(fieldFormat, name, item.width, item.height);
+                } else {
+                    final String name = dartIdentifier.unique(assetEntry.name, filePath, scopeNames, null);
+                    item.line = String.format(fieldFormat, name, defineAssetImage);
+                }
+            } else {
+                assetEntry.jsonItem.methodName = dartIdentifier.unique(assetEntry.name, filePath,
+                        scopeNames, JsonFile.METHOD_NAME_LOAD_JSON_PREFIX);
+                assetEntry.jsonItem.filePath = path;
+                if (options.jsonDecoded) {
+                    assetEntry.jsonItem.decodeName = dartIdentifier.unique(assetEntry.name, filePath,
+                            scopeNames, JsonFile.METHOD_NAME_DECODE_JSON_PREFIX);
+                }
+                if (assetEntry.jsonItem.constValue != null) {
+                    assetEntry.jsonItem.constName = dartIdentifier.unique(assetEntry.name, filePath,
+                            scopeNames, null);
+                }
+            }
         }
 
         final AssetsResult assetsResult = new AssetsResult();
         assetsResult.textAssets = textAssets.toString();
-        assetsResult.imageObjects = imageObjects;
+        assetsResult.pathObjects = pathObjects;
+        assetsResult.imageObjects = pathObjects.get(AssetCategory.IMAGE);
         assetsResult.jsonItemList = jsonItemList;
+        assetsResult.options = options;
         return assetsResult;
     }
 
-    private static String getFileName(String filePathWithoutDirectoryProject) {
-        try {
-            final String[] splitFileName = filePathWithoutDirectoryProject.split("/");
-            final String nameWithExtension = splitFileName[splitFileName.length - 1].trim();
-            return nameWithExtension;
-        } catch (Exception e) {
-            return null;
-        }
+    private static String formatClassName(final String className) {
+        return new DartIdentifier().encode(className, true);
     }
 
-    private static String formatName(String name) {
-        final String[] splitname = name.split("_");
-        if (splitname.length == 1) {
-            return name.split("\\.")[0];
+    /**
+     * Turns file names into Dart identifiers in one pass over the characters with a reused builder:
+     * the name stops at its first '.', '_' and any character that is not allowed in Dart start a new
+     * upper case word, '-' becomes '_', so ic_home.png gives icHome and ic-back_arrow.svg ic_backArrow.
+     */
+    private static class DartIdentifier {
+        private static final String DEFAULT_NAME = "asset";
+        private static final String DEFAULT_CLASS_NAME = "Asset";
+        private static final String RESERVED_WORD_SUFFIX = "_";
+        private static final Set<String> RESERVED_WORDS = new HashSet<>(Arrays.asList(
+                "assert", "break", "case", "catch", "class", "const", "continue", "default", "do", "else",
+                "enum", "extends", "false", "final", "finally", "for", "if", "in", "is", "new", "null",
+                "rethrow", "return", "super", "switch", "this", "throw", "true", "try", "var", "void",
+                "while", "with"));
+
+        private final StringBuilder builder = new StringBuilder(64);
+
+        public String encode(final CharSequence name, final boolean upperFirst) {
+            builder.setLength(0);
+            append(name, 0, name.length(), upperFirst, true);
+            if (builder.length() == 0) return upperFirst ? DEFAULT_CLASS_NAME : DEFAULT_NAME;
+            if (upperFirst && isDigit(builder.charAt(0))) {
+                builder.insert(0, DEFAULT_CLASS_NAME);
+            }
+            return builder.toString();
         }
-        String newName = splitname[0];
-        for (int i = 1; i < splitname.length; i++) {
-            final String sec = splitname[i];
-            final char[] nameChars = sec.toCharArray();
-            nameChars[0] = Character.toUpperCase(sec.charAt(0));
-            newName = newName + String.valueOf(nameChars);
+
+        /**
+         * A folder path as a class name: every '/', '.' or other separator starts a new word.
+         */
+        public String encodeFolder(final CharSequence folder) {
+            builder.setLength(0);
+            append(folder, 0, folder.length(), true, false);
+            if (builder.length() == 0 || isDigit(builder.charAt(0))) builder.insert(0, DEFAULT_CLASS_NAME);
+            return builder.toString();
         }
-        return newName.split("\\.")[0];
-    }
 
-    private static String formatClassName(final String className) {
-        final String name = "_" + className;
-        final String[] splitname = name.split("_");
-        if (splitname.length == 1) return name;
-        String newName = splitname[0];
-        for (int i = 1; i < splitname.length; i++) {
-            final String sec = splitname[i];
-            final char[] nameChars = sec.toCharArray();
-            nameChars[0] = Character.toUpperCase(sec.charAt(0));
-            newName = newName + String.valueOf(nameChars);
+        private void append(final CharSequence name, final int start, final int end,
+                            final boolean upperFirst, final boolean stopAtDot) {
+            boolean upperNext = upperFirst;
+            for (int i = start; i < end; i++) {
+                final char c = name.charAt(i);
+                if (c == '.' && stopAtDot) break;
+                if (c == '-') {
+                    builder.append('_');
+                    upperNext = false;
+                } else if (isLetter(c) || isDigit(c)) {
+                    builder.append(upperNext ? Character.toUpperCase(c) : c);
+                    upperNext = false;
+                } else {
+                    upperNext = true;
+                }
+            }
         }
-        return newName;
-    }
 
-    public static void search(final File folder, List<String> result) {
-        for (final File f : folder.listFiles()) {
-            if (f.isDirectory()) {
-                search(f, result);
+        /**
+         * Returns the field name, or the method name when prefix is given, for the file at path.
+         * A name already used in the class gets the parent folders of the file in front of it,
+         * nearest first, then a number, so a/icon.png and b/icon.png give icon and bIcon. Callers
+         * ask in NAMING_ORDER, so the result does not depend on the order the files were scanned in.
+         */
+        public String unique(final String name, final String path, final Map<String, String> usedNames,
+                             final String prefix, final String... suffixes) {
+            String identifier = identifier(name, prefix);
+            int folderEnd = path.lastIndexOf('/');
+            while (isUsed(identifier, usedNames, suffixes) && folderEnd > 0) {
+                final int folderStart = path.lastIndexOf('/', folderEnd - 1) + 1;
+                builder.setLength(0);
+                append(path, folderStart, folderEnd, false, false);
+                if (builder.length() > 0) {
+                    builder.append(Character.toUpperCase(name.charAt(0))).append(name, 1, name.length());
+                    identifier = identifier(builder.toString(), prefix);
+                }
+                folderEnd = folderStart - 1;
+            }
+            final String base = identifier;
+            for (int number = 2; isUsed(identifier, usedNames, suffixes); number++) {
+                identifier = base + number;
+            }
+            usedNames.put(identifier, path);
+            for (final String suffix : suffixes) {
+                usedNames.put(identifier + suffix, path);
+            }
+            return identifier;
+        }
+
+        /**
+         * A name with suffixes also declares name + suffix, all of them must be free.
+         */
+        private static boolean isUsed(final String identifier, final Map<String, String> usedNames,
+                                      final String[] suffixes) {
+            if (usedNames.containsKey(identifier)) return true;
+            for (final String suffix : suffixes) {
+                if (usedNames.containsKey(identifier + suffix)) return true;
+            }
+            return false;
+        }
+
+        private static String identifier(final String name, final String prefix) {
+            if (prefix != null) {
+                return prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
             }
-            if (f.isFile() && !isIgnoreFile(f)) {
-                result.add(f.getAbsolutePath());
+            if (isDigit(name.charAt(0))) return DEFAULT_NAME + name;
+            return RESERVED_WORDS.contains(name) ? name + RESERVED_WORD_SUFFIX : name;
+        }
+
+        /**
+         * Escapes a path for a single quoted Dart string.
+         */
+        public static String escape(final String path) {
+            StringBuilder escaped = null;
+            for (int i = 0; i < path.length(); i++) {
+                final char c = path.charAt(i);
+                if (c == '\\' || c == '\'' || c == '$') {
+                    if (escaped == null) escaped = new StringBuilder(path.length() + 8).append(path, 0, i);
+                    escaped.append('\\');
+                }
+                if (escaped != null) escaped.append(c);
             }
+            return escaped == null ? path : escaped.toString();
+        }
+
+        private static boolean isLetter(final char c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+
+        private static boolean isDigit(final char c) {
+            return c >= '0' && c <= '9';
         }
     }
 
-    private static boolean isIgnoreFile(File file) {
-        return file.getName().equals(".DS_Store");
+    private static boolean isIgnoreFile(String fileName) {
+        return fileName.equals(".DS_Store");
     }
 
     private static String curentTime() {
@@ -279,210 +688,3963 @@ public class BuildAssets {
         return pathName;
     }
 
-    public static void createNewDartFile(final Path path, final String fullContent) throws Exception {
+    public static WriteResult createNewDartFile(final Path path, final String fullContent,
+                                                final BuildMetrics metrics) throws IOException {
         Files.createDirectories(path.getParent());
-        Files.createFile(path);
-        writeFileWithString(path, fullContent);
+        if (Files.exists(path)) throw new FileAlreadyExistsException(path.toString());
+        final long start = System.nanoTime();
+        metrics.written(SectionWriter.writeAtomically(path, writer -> writer.write(fullContent)), start);
+        return WriteResult.WRITTEN;
     }
 
-    public static void updateDartFile(final Path path, final String updateContent) {
-        String classContent = "";
-        try {
-            classContent = readFileAsString(path);
-        } catch (IOException readException) {
-            System.err.format("Exception: %s%n", readException);
-            return;
-        }
-        final Matcher matcher = BUILD_DART_GEN_PATTERN.matcher(classContent);
-        if (!matcher.find()) {
-            System.out.println(DART_TOKEN_NOT_FOUND);
-            return;
-        }
-        final String genCode = String.format("%s\n\n%s\n%s", BUILD_DART_TOKEN_START, updateContent, BUILD_DART_TOKEN_END);
-        final String newConentFile = matcher.replaceFirst(genCode);
-        try {
-            writeFileWithString(path, newConentFile);
-        } catch (IOException writeException) {
-            System.err.format("Exception: %s%n", writeException);
-        }
+    public static WriteResult updateDartFile(final Path path, final String updateContent) {
+        return updateDartFile(path, updateContent, BuildMetrics.NONE);
     }
 
+    public static WriteResult updateDartFile(final Path path, final String updateContent, final BuildMetrics metrics) {
+        final String section = String.format("\n\n%s\n", updateContent);
+        return SectionWriter.replaceSection(path, BUILD_DART_TOKEN_START, BUILD_DART_TOKEN_END, section,
+                DART_TOKEN_NOT_FOUND, metrics);
+    }
 
-    private static class PubspecYaml {
-        public static void updatePubspecYamlFile(final AssetsResult assetsResult) {
-            String pubspecFileContent = "";
+    private enum WriteResult {
+        WRITTEN,
+        UNCHANGED,
+        CACHED,
+        FAILED
+    }
+
+    /**
+     * Replaces the text between a start and an end marker of a file.
+     * The markers are found with a linear scan (first start marker, last end marker), the prefix,
+     * the new section and the suffix are streamed into a temp file next to the target which is
+     * then moved over it. Nothing is written when the section already has the same content,
+     * so the file keeps its mtime.
+     */
+    private static class SectionWriter {
+        private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+        private interface Content {
+            void writeTo(Writer writer) throws IOException;
+        }
+
+        public static WriteResult replaceSection(final Path path,
+                                                 final String startToken,
+                                                 final String endToken,
+                                                 final String section,
+                                                 final String tokenNotFound,
+                                                 final BuildMetrics metrics) {
+            final String content;
             try {
-                pubspecFileContent = readFileAsString(PUBSPEC_FILE_NAME);
+                final long readStart = System.nanoTime();
+                final byte[] bytes = Files.readAllBytes(path);
+                metrics.read(bytes.length, readStart);
+                content = new String(bytes, StandardCharsets.UTF_8);
             } catch (IOException e) {
-                System.err.format("Exception: %s%n", e);
-                return;
+                metrics.err().format("Exception: %s%n", e);
+                return WriteResult.FAILED;
             }
 
-            final Matcher matcher = BUILD_GN_GEN_PATTERN.matcher(pubspecFileContent);
-            if (!matcher.find()) {
-                System.out.println(GN_TOKEN_NOT_FOUND);
-                return;
+            final int start = content.indexOf(startToken);
+            final int sectionStart = start + startToken.length();
+            final int sectionEnd = start < 0 ? -1 : content.lastIndexOf(endToken);
+            if (start < 0 || sectionEnd < sectionStart) {
+                metrics.out().println(tokenNotFound);
+                return WriteResult.FAILED;
+            }
+
+            if (sectionEnd - sectionStart == section.length()
+                    && content.regionMatches(sectionStart, section, 0, section.length())) {
+                return WriteResult.UNCHANGED;
             }
-            final String genCode = String.format("%s\n%s  %s", BUILD_GN_TOKEN_START, assetsResult.textAssets, BUILD_GN_TOKEN_END);
-            final String newConentFile = matcher.replaceFirst(genCode);
+
             try {
-                writeFileWithString(PUBSPEC_FILE_NAME, newConentFile);
+                final long writeStart = System.nanoTime();
+                metrics.written(writeAtomically(path, writer -> {
+                    writer.write(content, 0, sectionStart);
+                    writer.write(section);
+                    writer.write(content, sectionEnd, content.length() - sectionEnd);
+                }), writeStart);
+                return WriteResult.WRITTEN;
             } catch (IOException e) {
-                System.err.format("Exception: %s%n", e);
+                metrics.err().format("Exception: %s%n", e);
+                return WriteResult.FAILED;
+            }
+        }
+
+        /**
+         * Writes a whole generated file, unless it already has this content.
+         */
+        public static WriteResult writeIfChanged(final Path path, final String content, final BuildMetrics metrics) {
+            try {
+                final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+                if (Files.exists(path) && Files.size(path) == bytes.length) {
+                    final long readStart = System.nanoTime();
+                    final byte[] current = Files.readAllBytes(path);
+                    metrics.read(current.length, readStart);
+                    if (Arrays.equals(current, bytes)) return WriteResult.UNCHANGED;
+                }
+                Files.createDirectories(path.toAbsolutePath().getParent());
+                final long writeStart = System.nanoTime();
+                metrics.written(writeAtomically(path, writer -> writer.write(content)), writeStart);
+                return WriteResult.WRITTEN;
+            } catch (IOException e) {
+                metrics.err().format("Exception: %s%n", e);
+                return WriteResult.FAILED;
+            }
+        }
+
+        /**
+         * Returns the size of the written file.
+         */
+        public static long writeAtomically(final Path path, final Content content) throws IOException {
+            final Path directory = path.toAbsolutePath().getParent();
+            final Path tempFile = createTempFile(directory, path);
+            try {
+                try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    content.writeTo(writer);
+                }
+                final long size = Files.size(tempFile);
+                try {
+                    Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return size;
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+
+        /**
+         * Creates the temp file with Files.createFile, which honours the umask, unlike
+         * Files.createTempFile which always makes it owner-only; when the target exists the temp file
+         * also gets its permissions and, when allowed, its owner and group, so replacing pubspec.yaml
+         * keeps it shared.
+         */
+        private static Path createTempFile(final Path directory, final Path target) throws IOException {
+            while (true) {
+                final Path tempFile = directory.resolve("." + target.getFileName()
+                        + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + TEMP_FILE_SUFFIX);
+                try {
+                    Files.createFile(tempFile);
+                } catch (FileAlreadyExistsException e) {
+                    continue;
+                }
+                final PosixFileAttributeView view = Files.exists(target)
+                        ? Files.getFileAttributeView(target, PosixFileAttributeView.class) : null;
+                if (view == null) return tempFile;
+                try {
+                    final PosixFileAttributes attributes = view.readAttributes();
+                    final PosixFileAttributeView tempView = Files.getFileAttributeView(tempFile,
+                            PosixFileAttributeView.class);
+                    tempView.setPermissions(attributes.permissions());
+                    try {
+                        tempView.setGroup(attributes.group());
+                        tempView.setOwner(attributes.owner());
+                    } catch (IOException e) {
+                        // only root can give a file away, the permissions are what the other users need
+                    }
+                    return tempFile;
+                } catch (IOException e) {
+                    Files.deleteIfExists(tempFile);
+                    throw e;
+                }
             }
         }
     }
 
-    private static class ImageObject {
+    private static class PubspecYaml {
+        public static WriteResult updatePubspecYamlFile(final AssetsResult assetsResult, final BuildMetrics metrics) {
+            final String section = String.format("\n%s  ", assetsResult.textAssets);
+            return SectionWriter.replaceSection(assetsResult.options.projectDir.resolve(PUBSPEC_FILE_NAME), BUILD_GN_TOKEN_START, BUILD_GN_TOKEN_END,
+                    section, GN_TOKEN_NOT_FOUND, metrics);
+        }
+    }
+
+    private static class AssetFile {
+        public String path;
         public String fileName;
-        public String line;
+        public long size;
+        public long lastModified;
     }
 
-    private static class JsonItem {
-        public String filePath;
-        public String methodName;
+    private static class AssetDirectory {
+        public String path;
+        public long lastModified;
+        public boolean partial;
+    }
 
-        public String createMethodFunction() {
-            if (filePath == null || methodName == null) return "";
+    private static class AssetTree {
+        public final List<AssetFile> files = new ArrayList<>();
+        public final List<AssetDirectory> directories = new ArrayList<>();
+    }
 
-            final StringWriter stringWriter = new StringWriter();
-            final PrintWriter printWriter = new PrintWriter(stringWriter);
-            printWriter.println("  static Future<String> METHOD_NAME() async {".replace("METHOD_NAME", methodName));
-            printWriter.println("    return await rootBundle.loadString('FILE_PATH');".replace("FILE_PATH", filePath));
-            printWriter.println("  }");
+    /**
+     * The rules of the .assetignore file next to pubspec.yaml, in gitignore syntax: # comments,
+     * ! to include again, a trailing / for folders only, a rule with a / before its end is matched
+     * against the path from the project folder (assets/art/**), any other against the file or
+     * folder name at every depth, with *, ?, [a-z] and **. A folder that matches is not listed at
+     * all. The rules are compiled once: plain names, paths and *.ext rules become hash lookups,
+     * the rest regular expressions; when there is no ! rule the first match decides, otherwise
+     * the last matching rule does, as in git.
+     */
+    private static class AssetIgnore {
+        public static final String FILE_NAME = ".assetignore";
+        public static final AssetIgnore NONE = new AssetIgnore(new ArrayList<>(), "");
+        private static final String GLOB_CHARACTERS = "*?[\\";
 
-            return stringWriter.toString();
+        private static class Rule {
+            boolean negated;
+            boolean directoryOnly;
+            boolean anchored;
+            String name;
+            String extension;
+            Pattern pattern;
+
+            boolean matches(final String path, final String fileName, final boolean directory) {
+                if (directoryOnly && !directory) return false;
+                if (name != null) return name.equals(anchored ? path : fileName);
+                if (extension != null) return fileName.endsWith(extension);
+                return pattern.matcher(anchored ? path : fileName).matches();
+            }
         }
-    }
 
-    private static class AssetsResult {
-        public String textAssets;
-        public List<ImageObject> imageObjects;
-        public List<JsonItem> jsonItemList;
-    }
+        public final String fingerprint;
+        private final List<Rule> rules;
+        private final boolean ordered;
+        private final Set<String> names = new HashSet<>();
+        private final Set<String> paths = new HashSet<>();
+        private final Set<String> extensions = new HashSet<>();
+        private final List<Rule> otherRules = new ArrayList<>();
 
-    private static class DartFileCreater {
-        private static void createDartFile(final String fileFullPath,
-                                           final String fullContent,
-                                           final String updateContent) {
-            final Path path = Paths.get(fileFullPath);
+        private AssetIgnore(final List<Rule> rules, final String fingerprint) {
+            this.rules = rules;
+            this.fingerprint = fingerprint;
+            boolean negated = false;
+            for (final Rule rule : rules) {
+                negated |= rule.negated;
+                if (rule.directoryOnly || (rule.name == null && rule.extension == null)) {
+                    otherRules.add(rule);
+                } else if (rule.name != null) {
+                    (rule.anchored ? paths : names).add(rule.name);
+                } else {
+                    extensions.add(rule.extension);
+                }
+            }
+            this.ordered = negated;
+        }
+
+        public static AssetIgnore load(final Path projectDir, final PrintStream errors) {
+            final Path file = projectDir.resolve(FILE_NAME);
+            if (!Files.isRegularFile(file)) return NONE;
             try {
-                createNewDartFile(path, fullContent);
-            } catch (Exception e) {
-                if (e instanceof FileAlreadyExistsException) {
-                    updateDartFile(path, updateContent);
-                    return;
+                final byte[] bytes = Files.readAllBytes(file);
+                final List<Rule> rules = new ArrayList<>();
+                for (final String line : new String(bytes, StandardCharsets.UTF_8).split("\r?\n")) {
+                    final Rule rule = compile(line);
+                    if (rule != null) rules.add(rule);
                 }
-                System.err.format("Exception: %s%n", e);
+                final String hash = BuildCache.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+                return new AssetIgnore(rules, hash.substring(0, 12));
+            } catch (IOException | NoSuchAlgorithmException e) {
+                errors.format("Exception: %s%n", e);
+                return NONE;
             }
         }
 
-        public static void genDartFile(final String arg,
-                                       final String fullContent,
-                                       final String updateContent) {
-            final String[] splitArg = arg.split("\\.");
-            final int splitArgLength = splitArg.length;
-            final String fileName = splitArg[splitArgLength - 2] + DART_FILE;
-            final boolean hasPackage = splitArgLength > 2;
+        private static Rule compile(final String line) {
+            String glob = line;
+            while (glob.endsWith(" ") && !glob.endsWith("\\ ")) {
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            if (glob.isEmpty() || glob.startsWith("#")) return null;
+            final Rule rule = new Rule();
+            if (glob.startsWith("!")) {
+                rule.negated = true;
+                glob = glob.substring(1);
+            } else if (glob.startsWith("\\#") || glob.startsWith("\\!")) {
+                glob = glob.substring(1);
+            }
+            if (glob.endsWith("/")) {
+                rule.directoryOnly = true;
+                glob = glob.substring(0, glob.length() - 1);
+            }
+            rule.anchored = glob.indexOf('/') >= 0;
+            if (glob.startsWith("/")) glob = glob.substring(1);
+            if (glob.isEmpty()) return null;
 
-            final String filePath = hasPackage ? getLocalFilePath(arg) : fileName;
-            final String fileFullPath = String.format(PATH_LIB_FORMAT, filePath);
-            final String className = formatClassName(splitArg[splitArgLength - 2]);
-            createDartFile(fileFullPath, fullContent, updateContent);
+            if (!hasGlobCharacters(glob)) {
+                rule.name = glob;
+            } else if (!rule.anchored && glob.startsWith("*.") && !hasGlobCharacters(glob.substring(1))
+                    && glob.indexOf('.', 2) < 0) {
+                rule.extension = glob.substring(1);
+            } else {
+                rule.pattern = Pattern.compile(toRegex(glob));
+            }
+            return rule;
         }
-    }
 
-    private static class AssetImage {
-        public static boolean isSupportedImageFormats(final String fileName) {
-            final String fileNameLowerCase = fileName.toLowerCase();
-            for (final String format : SUPPOTED_IMAGE_FORMATS) {
-                if (fileNameLowerCase.endsWith("." + format)) {
-                    return true;
-                }
+        private static boolean hasGlobCharacters(final String glob) {
+            for (int i = 0; i < glob.length(); i++) {
+                if (GLOB_CHARACTERS.indexOf(glob.charAt(i)) >= 0) return true;
             }
             return false;
         }
 
-        public static String createTemplateContent(final String className,
-                                                   final List<ImageObject> imageObjects) {
-            if (className == null || className.isEmpty()) return "";
-            if (imageObjects == null || imageObjects.isEmpty()) return "";
+        private static String toRegex(final String glob) {
+            final StringBuilder regex = new StringBuilder(glob.length() * 2);
+            int i = 0;
+            if (glob.startsWith("**/")) {
+                regex.append("(?:.*/)?");
+                i = 3;
+            }
+            while (i < glob.length()) {
+                final char c = glob.charAt(i);
+                if (glob.startsWith("/**/", i)) {
+                    regex.append("/(?:.*/)?");
+                    i += 4;
+                } else if (glob.startsWith("/**", i) && i + 3 == glob.length()) {
+                    regex.append("/.*");
+                    i += 3;
+                } else if (glob.startsWith("**", i)) {
+                    regex.append(".*");
+                    i += 2;
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                    i++;
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                    i++;
+                } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                    final int end = glob.indexOf(']', i + 2);
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) set = "^" + set.substring(1);
+                    regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end + 1;
+                } else if (c == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(i + 1))));
+                    i += 2;
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    i++;
+                }
+            }
+            return regex.toString();
+        }
 
-            final StringWriter stringWriter = new StringWriter();
-            final PrintWriter printWriter = new PrintWriter(stringWriter);
-            printWriter.println("");
-            //start
-            printWriter.println("class CLASS_NAME {".replace("CLASS_NAME", className));
-            printWriter.println(BUILD_DART_TOKEN_START);
-            printWriter.println("");
-            printWriter.println(createAssetImageDartCode(imageObjects));
-            printWriter.println(BUILD_DART_TOKEN_END);
-            printWriter.println("}");
-            printWriter.println("");
-            return stringWriter.toString();
+        /**
+         * path is relative to the project folder, name is its last segment.
+         */
+        public boolean isIgnored(final String path, final String name, final boolean directory) {
+            if (rules.isEmpty()) return false;
+            if (!ordered) {
+                if (names.contains(name) || paths.contains(path)) return true;
+                final int dot = name.lastIndexOf('.');
+                if (dot >= 0 && extensions.contains(name.substring(dot))) return true;
+                for (final Rule rule : otherRules) {
+                    if (rule.matches(path, name, directory)) return true;
+                }
+                return false;
+            }
+            boolean ignored = false;
+            for (final Rule rule : rules) {
+                if (rule.negated == ignored && rule.matches(path, name, directory)) {
+                    ignored = !rule.negated;
+                }
+            }
+            return ignored;
         }
+    }
 
-        public static String createAssetImageDartCode(final List<ImageObject> imageObjects) {
-            final StringWriter stringWriter = new StringWriter();
-            final PrintWriter printWriter = new PrintWriter(stringWriter);
+    /**
+     * Walks the assets folder with java.nio on a fork/join pool, one task per directory.
+     * Paths come back relative to the project, '/' separated, and in PATH_ORDER.
+     */
+    private static class AssetScanner {
+        private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
 
-            for (final ImageObject item : imageObjects) {
-                printWriter.println(item.line);
+        /**
+         * The files of a directory sorted by name, then each sub directory sorted by name.
+         */
+        public static final Comparator<String> PATH_ORDER = (left, right) -> {
+            int start = 0;
+            while (true) {
+                final int leftEnd = left.indexOf('/', start);
+                final int rightEnd = right.indexOf('/', start);
+                final String leftSegment = left.substring(start, leftEnd < 0 ? left.length() : leftEnd);
+                final String rightSegment = right.substring(start, rightEnd < 0 ? right.length() : rightEnd);
+                if (!leftSegment.equals(rightSegment)) {
+                    if ((leftEnd < 0) != (rightEnd < 0)) return leftEnd < 0 ? -1 : 1;
+                    return leftSegment.compareTo(rightSegment);
+                }
+                if (leftEnd < 0 || rightEnd < 0) return (leftEnd < 0 ? 0 : 1) - (rightEnd < 0 ? 0 : 1);
+                start = leftEnd + 1;
             }
+        };
 
-            return stringWriter.toString();
+        public static AssetTree scan(final Path folder, final String relativePath,
+                                     final AssetIgnore assetIgnore) throws IOException {
+            final long lastModified = Files.getLastModifiedTime(folder).toMillis();
+            try {
+                return POOL.invoke(new DirectoryTask(folder, relativePath, lastModified, assetIgnore));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
-    }
 
-    private static class JsonFile {
-        private static final String METHOD_NAME_LOAD_JSON_FORAMT = "load%s";
+        private static final Comparator<Path> BY_FILE_NAME =
+                Comparator.comparing(path -> path.getFileName().toString());
 
-        public static boolean isJsonFile(String fileName) {
-            return fileName.toLowerCase().endsWith(".json");
-        }
+        private static class DirectoryTask extends RecursiveTask<AssetTree> {
+            private static final long serialVersionUID = 1L;
+            private final Path directory;
+            private final String relativePath;
+            private final long lastModified;
+            private final AssetIgnore assetIgnore;
 
-        public static String makeMethodName(final String name) {
-            final char[] nameChars = name.toCharArray();
-            nameChars[0] = Character.toUpperCase(name.charAt(0));
-            return String.format(METHOD_NAME_LOAD_JSON_FORAMT, String.valueOf(nameChars));
-        }
+            DirectoryTask(final Path directory, final String relativePath, final long lastModified,
+                          final AssetIgnore assetIgnore) {
+                this.directory = directory;
+                this.relativePath = relativePath;
+                this.lastModified = lastModified;
+                this.assetIgnore = assetIgnore;
+            }
 
-        public static String createTemplateContent(final String className, final List<JsonItem> jsonItemList) {
-            if (className == null || className.isEmpty()) return "";
-            if (jsonItemList == null || jsonItemList.isEmpty()) return "";
+            @Override
+            protected AssetTree compute() {
+                final List<Path> entries = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                    for (final Path entry : stream) {
+                        entries.add(entry);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                final Path[] sorted = entries.toArray(new Path[0]);
+                Arrays.sort(sorted, BY_FILE_NAME);
 
-            final StringWriter stringWriter = new StringWriter();
-            final PrintWriter printWriter = new PrintWriter(stringWriter);
-            printWriter.println("import 'dart:async' show Future;");
-            printWriter.println("");
-            printWriter.println("import 'package:flutter/services.dart' show rootBundle;");
-            printWriter.println("");
+                final AssetTree tree = new AssetTree();
+                final AssetDirectory assetDirectory = new AssetDirectory();
+                assetDirectory.path = relativePath;
+                assetDirectory.lastModified = lastModified;
+                tree.directories.add(assetDirectory);
 
-            printWriter.println("class CLASS_NAME {".replace("CLASS_NAME", className));
-            printWriter.println(BUILD_DART_TOKEN_START);
-            printWriter.println("");
-            printWriter.println(createJsonDartCode(jsonItemList));
-            printWriter.println(BUILD_DART_TOKEN_END);
-            printWriter.println("}");
-            printWriter.println("");
-            return stringWriter.toString();
+                final List<DirectoryTask> subTasks = new ArrayList<>();
+                for (final Path entry : sorted) {
+                    final String name = entry.getFileName().toString();
+                    final BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    final String path = relativePath + "/" + name;
+                    if (attributes.isDirectory()) {
+                        if (assetIgnore.isIgnored(path, name, true)) continue;
+                        final DirectoryTask task = new DirectoryTask(entry, path,
+                                attributes.lastModifiedTime().toMillis(), assetIgnore);
+                        task.fork();
+                        subTasks.add(task);
+                    } else if (attributes.isRegularFile() && !isIgnoreFile(name)) {
+                        if (assetIgnore.isIgnored(path, name, false)) {
+                            assetDirectory.partial |= !name.startsWith(".");
+                            continue;
+                        }
+                        final AssetFile file = new AssetFile();
+                        file.path = path;
+                        file.fileName = name;
+                        file.size = attributes.size();
+                        file.lastModified = attributes.lastModifiedTime().toMillis();
+                        tree.files.add(file);
+                    }
+                }
+                for (final DirectoryTask task : subTasks) {
+                    final AssetTree subTree = task.join();
+                    tree.files.addAll(subTree.files);
+                    tree.directories.addAll(subTree.directories);
+                }
+                return tree;
+            }
         }
+    }
 
-        private static String createJsonDartCode(final List<JsonItem> jsonItemList) {
+    /**
+     * The targets and flags of a run. A run takes any number of targets on the command line or
+     * from a config file, flags can be given in both places:
+     * % java BuildAssets pubspec AssetImage local.all_assets.dart JSON local.reader_json.dart --profile
+     * % java BuildAssets --config build_assets.config
+     */
+    private static class BuildOptions implements Cloneable {
+        private static final String FLAG_PREFIX = "--";
+        private static final String FLAG_PROFILE = "--profile";
+        private static final String FLAG_METRICS = "--metrics";
+        private static final String FLAG_IMAGE_SIZES = "--image-sizes";
+        private static final String FLAG_COLLAPSE_ASSETS = "--collapse-assets";
+        private static final String FLAG_DEDUP = "--dedup";
+        private static final String FLAG_DEDUP_CANONICAL = "--dedup=canonical";
+        private static final String FLAG_JSON_CHECK = "--json-check";
+        private static final String FLAG_JSON_MINIFY = "--json-minify";
+        private static final String FLAG_JSON_INLINE = "--json-inline";
+        private static final String DEFAULT_JSON_MINIFY_FOLDER = "build/build_assets";
+        private static final long DEFAULT_JSON_INLINE_BYTES = 1024;
+        private static final String FLAG_JSON_CACHE = "--json-cache";
+        private static final String FLAG_JSON_DECODED = "--json-decoded";
+        private static final long DEFAULT_JSON_CACHE_BYTES = 1024 * 1024;
+        private static final String FLAG_SHARD = "--shard";
+        public static final int SHARD_BY_FOLDER = -1;
+
+        public final List<BuildTarget> targets = new ArrayList<>();
+        public boolean profile;
+        public String metricsFile;
+        public boolean imageSizes;
+        public boolean collapseAssets;
+        public boolean dedup;
+        public boolean dedupCanonical;
+        public boolean jsonCheck;
+        public String jsonMinifyFolder;
+        public long jsonInlineBytes = -1;
+        public long jsonCacheBytes = -1;
+        public boolean jsonDecoded;
+        public int shardSize;
+        public Path projectDir = Paths.get("").toAbsolutePath();
+        public PrintStream console;
+        private AssetIgnore assetIgnore;
+
+        /**
+         * Returns null when the arguments are not valid, no target means the pubspec.yaml only.
+         */
+        public static BuildOptions parse(final String[] args, final Path projectDir) {
+            final BuildOptions options = new BuildOptions();
+            options.projectDir = projectDir;
+            if (!options.parse(args, true)) return null;
+            if (options.targets.isEmpty()) {
+                options.targets.add(new BuildTarget(ARG_PUBSPEC, null));
+            }
+
+            final Set<Path> outputPaths = new HashSet<>();
+            for (final BuildTarget target : options.targets) {
+                if (!outputPaths.add(target.outputPath())) {
+                    System.out.println(String.format(DUPLICATE_OUTPUT, target.outputPath()));
+                    return null;
+                }
+            }
+            return options;
+        }
+
+        private boolean parse(final String[] args, final boolean allowConfig) {
+            int i = 0;
+            while (i < args.length) {
+                final String kind = args[i].trim();
+                if (ARG_PUBSPEC.equals(kind)) {
+                    targets.add(new BuildTarget(kind, null));
+                    i++;
+                } else if (AssetClassifier.codeGenerator(kind) != null) {
+                    if (i + 1 >= args.length || !args[i + 1].trim().endsWith(DART_FILE)) return false;
+                    targets.add(new BuildTarget(kind, args[i + 1].trim()));
+                    i += 2;
+                } else if (ARG_CONFIG.equals(kind) && allowConfig) {
+                    final boolean hasFile = i + 1 < args.length && !isKeyword(args[i + 1].trim());
+                    final String configFile = hasFile ? args[i + 1].trim() : DEFAULT_CONFIG_FILE;
+                    final String[] configArgs = readConfig(projectDir.resolve(configFile));
+                    if (configArgs == null || !parse(configArgs, false)) return false;
+                    i += hasFile ? 2 : 1;
+                } else if (FLAG_PROFILE.equals(kind)) {
+                    profile = true;
+                    i++;
+                } else if (FLAG_IMAGE_SIZES.equals(kind)) {
+                    imageSizes = true;
+                    i++;
+                } else if (FLAG_COLLAPSE_ASSETS.equals(kind)) {
+                    collapseAssets = true;
+                    i++;
+                } else if (FLAG_DEDUP.equals(kind) || FLAG_DEDUP_CANONICAL.equals(kind)) {
+                    dedup = true;
+                    dedupCanonical |= FLAG_DEDUP_CANONICAL.equals(kind);
+                    i++;
+                } else if (FLAG_JSON_CHECK.equals(kind)) {
+                    jsonCheck = true;
+                    i++;
+                } else if (FLAG_JSON_MINIFY.equals(kind) || kind.startsWith(FLAG_JSON_MINIFY + "=")) {
+                    jsonMinifyFolder = kind.length() > FLAG_JSON_MINIFY.length() + 1
+                            ? kind.substring(FLAG_JSON_MINIFY.length() + 1) : DEFAULT_JSON_MINIFY_FOLDER;
+                    while (jsonMinifyFolder.endsWith("/")) {
+                        jsonMinifyFolder = jsonMinifyFolder.substring(0, jsonMinifyFolder.length() - 1);
+                    }
+                    if (jsonMinifyFolder.isEmpty()) return false;
+                    i++;
+                } else if (FLAG_JSON_INLINE.equals(kind) || kind.startsWith(FLAG_JSON_INLINE + "=")) {
+                    try {
+                        jsonInlineBytes = kind.length() > FLAG_JSON_INLINE.length() + 1
+                                ? Long.parseLong(kind.substring(FLAG_JSON_INLINE.length() + 1)) : DEFAULT_JSON_INLINE_BYTES;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                    if (jsonInlineBytes < 0) return false;
+                    i++;
+                } else if (FLAG_JSON_CACHE.equals(kind) || kind.startsWith(FLAG_JSON_CACHE + "=")) {
+                    try {
+                        jsonCacheBytes = kind.length() > FLAG_JSON_CACHE.length() + 1
+                                ? Long.parseLong(kind.substring(FLAG_JSON_CACHE.length() + 1)) : DEFAULT_JSON_CACHE_BYTES;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                    if (jsonCacheBytes < 0) return false;
+                    i++;
+                } else if (FLAG_JSON_DECODED.equals(kind)) {
+                    jsonDecoded = true;
+                    i++;
+                } else if (FLAG_SHARD.equals(kind) || kind.startsWith(FLAG_SHARD + "=")) {
+                    try {
+                        shardSize = kind.length() > FLAG_SHARD.length() + 1
+                                ? Integer.parseInt(kind.substring(FLAG_SHARD.length() + 1)) : SHARD_BY_FOLDER;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                    if (shardSize == 0 || shardSize < SHARD_BY_FOLDER) return false;
+                    i++;
+                } else if (FLAG_METRICS.equals(kind)) {
+                    if (i + 1 >= args.length || isKeyword(args[i + 1].trim())) return false;
+                    metricsFile = args[i + 1].trim();
+                    i += 2;
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isKeyword(final String arg) {
+            return ARG_PUBSPEC.equals(arg) || AssetClassifier.codeGenerator(arg) != null || arg.startsWith(FLAG_PREFIX);
+        }
+
+        /**
+         * One target or flag per line, the same words as on the command line, lines starting with # are ignored.
+         * Returns null when the file can not be read.
+         */
+        private static String[] readConfig(final Path configFile) {
+            final List<String> words = new ArrayList<>();
+            try {
+                for (final String line : Files.readAllLines(configFile, StandardCharsets.UTF_8)) {
+                    final String trimmed = line.trim();
+                    if (trimmed.isEmpty() || trimmed.startsWith(CONFIG_COMMENT)) continue;
+                    words.addAll(Arrays.asList(trimmed.split("\\s+")));
+                }
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+                return null;
+            }
+            return words.toArray(new String[0]);
+        }
+
+        /**
+         * The .assetignore rules of projectDir, read on first use.
+         */
+        public AssetIgnore assetIgnore() {
+            if (assetIgnore == null) assetIgnore = AssetIgnore.load(projectDir, err());
+            return assetIgnore;
+        }
+
+        /**
+         * Where the build of this project prints, console when set (one buffer per package in a
+         * monorepo run), otherwise the process output.
+         */
+        public PrintStream out() {
+            return console != null ? console : System.out;
+        }
+
+        public PrintStream err() {
+            return console != null ? console : System.err;
+        }
+
+        /**
+         * The same targets and flags for the project at projectDir.
+         */
+        public BuildOptions forProject(final Path projectDir) {
+            try {
+                final BuildOptions options = (BuildOptions) clone();
+                options.projectDir = projectDir;
+                options.assetIgnore = null;
+                return options;
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Everything that changes the generated code, used as the key of the build manifest.
+         */
+        public String describe() {
+            final StringBuilder description = new StringBuilder();
+            for (final BuildTarget target : targets) {
+                if (description.length() > 0) description.append(' ');
+                description.append(target.kind);
+                if (target.arg != null) description.append(' ').append(target.arg);
+            }
+            if (imageSizes) description.append(' ').append(FLAG_IMAGE_SIZES);
+            if (collapseAssets) description.append(' ').append(FLAG_COLLAPSE_ASSETS);
+            if (dedup) description.append(' ').append(dedupCanonical ? FLAG_DEDUP_CANONICAL : FLAG_DEDUP);
+            if (jsonCheck) description.append(' ').append(FLAG_JSON_CHECK);
+            if (jsonMinifyFolder != null) description.append(' ').append(FLAG_JSON_MINIFY).append('=').append(jsonMinifyFolder);
+            if (jsonInlineBytes >= 0) description.append(' ').append(FLAG_JSON_INLINE).append('=').append(jsonInlineBytes);
+            if (jsonCacheBytes >= 0) description.append(' ').append(FLAG_JSON_CACHE).append('=').append(jsonCacheBytes);
+            if (jsonDecoded) description.append(' ').append(FLAG_JSON_DECODED);
+            if (shardSize != 0) description.append(' ').append(FLAG_SHARD).append('=').append(shardSize);
+            if (!assetIgnore().fingerprint.isEmpty()) {
+                description.append(' ').append(AssetIgnore.FILE_NAME).append('=').append(assetIgnore().fingerprint);
+            }
+            return description.toString();
+        }
+
+        /**
+         * True when the generated code changes with the content of a file, not only its path.
+         */
+        public boolean dependsOnFileContent() {
+            return imageSizes || dedup || processesJson();
+        }
+
+        public boolean processesJson() {
+            return jsonCheck || jsonMinifyFolder != null || jsonInlineBytes >= 0;
+        }
+    }
+
+    /**
+     * One output of a run: the pubspec.yaml assets section, or a Dart class.
+     */
+    private static class BuildTarget {
+        public final String kind;
+        public final String arg;
+
+        private BuildTarget(final String kind, final String arg) {
+            this.kind = kind;
+            this.arg = arg;
+        }
+
+        public Path outputPath() {
+            return Paths.get(arg == null ? PUBSPEC_FILE_NAME : DartFileCreater.getDartFilePath(arg));
+        }
+
+        public Path outputPath(final Path projectDir) {
+            return projectDir.resolve(outputPath());
+        }
+
+        private String className() {
+            final String[] splitArg = arg.split("\\.");
+            return formatClassName(splitArg[splitArg.length - 2]);
+        }
+
+        public String render(final AssetsResult assetsResult) {
+            final AssetCodeGenerator codeGenerator = AssetClassifier.codeGenerator(kind);
+            if (codeGenerator == null) return assetsResult.textAssets;
+            return codeGenerator.createDartCode(assetsResult);
+        }
+
+        private WriteResult write(final AssetsResult assetsResult, final String generatedCode,
+                                  final BuildMetrics metrics) {
+            final AssetCodeGenerator codeGenerator = AssetClassifier.codeGenerator(kind);
+            if (codeGenerator == null) return PubspecYaml.updatePubspecYamlFile(assetsResult, metrics);
+            return DartFileCreater.createDartFile(
+                    outputPath(assetsResult.options.projectDir).toString(),
+                    codeGenerator.createTemplateContent(className(), assetsResult),
+                    generatedCode,
+                    metrics);
+        }
+
+        /**
+         * Returns true when the output is written or already up to date.
+         */
+        public boolean generate(final AssetsResult assetsResult, final BuildCache buildCache,
+                                final BuildMetrics metrics) {
+            final AssetCodeGenerator codeGenerator = AssetClassifier.codeGenerator(kind);
+            if (assetsResult.options.shardSize != 0 && codeGenerator instanceof PathCodeGenerator) {
+                return ShardedPathCode.generate(this, ((PathCodeGenerator) codeGenerator).category,
+                        assetsResult, buildCache, metrics);
+            }
+
+            final long start = System.nanoTime();
+            final String generatedCode = render(assetsResult);
+            metrics.phase(BuildMetrics.PHASE_RENDER, start, 1);
+
+            final Path outputPath = outputPath(assetsResult.options.projectDir);
+            final WriteResult writeResult = buildCache.isOutputUpToDate(outputPath, generatedCode)
+                    ? WriteResult.CACHED
+                    : write(assetsResult, generatedCode, metrics);
+            metrics.output(outputPath, writeResult);
+            if (writeResult == WriteResult.FAILED) return false;
+            buildCache.putOutput(outputPath, generatedCode);
+            return true;
+        }
+    }
+
+    /**
+     * The kinds of asset a Dart class can be generated for, with the target word used on the
+     * command line and the file extensions of the kind.
+     */
+    private enum AssetCategory {
+        IMAGE(ARG_GEN_CODE_ASSET_IMAGE, SUPPOTED_IMAGE_FORMATS),
+        JSON(ARG_GEN_CODE_JSON, "json"),
+        FONT("Font", "ttf", "otf", "ttc", "woff", "woff2"),
+        AUDIO("Audio", "mp3", "wav", "ogg", "aac", "m4a", "flac"),
+        VIDEO("Video", "mp4", "mov", "m4v", "webm", "mkv"),
+        LOTTIE("Lottie", "lottie"),
+        SHADER("Shader", "frag"),
+        RIVE("Rive", "riv");
+
+        public final String arg;
+        public final String[] extensions;
+
+        AssetCategory(final String arg, final String... extensions) {
+            this.arg = arg;
+            this.extensions = extensions;
+        }
+    }
+
+    /**
+     * Renders the Dart class of one target: the content of a new file, or the generated section
+     * of an existing one.
+     */
+    private interface AssetCodeGenerator {
+        String createTemplateContent(String className, AssetsResult assetsResult);
+
+        String createDartCode(AssetsResult assetsResult);
+    }
+
+    /**
+     * A class of static path fields, used for images and every category without its own generator.
+     */
+    private static class PathCodeGenerator implements AssetCodeGenerator {
+        public final AssetCategory category;
+
+        PathCodeGenerator(final AssetCategory category) {
+            this.category = category;
+        }
+
+        @Override
+        public String createTemplateContent(final String className, final AssetsResult assetsResult) {
+            return AssetImage.createTemplateContent(className, assetsResult.pathObjects.get(category));
+        }
+
+        @Override
+        public String createDartCode(final AssetsResult assetsResult) {
+            return AssetImage.createAssetImageDartCode(assetsResult.pathObjects.get(category));
+        }
+    }
+
+    /**
+     * With --shard, a path class is split into one file per asset folder, or with --shard=<N> into
+     * files of N fields, under a folder named after the target (lib/r.dart gets lib/r/). The target
+     * itself becomes a facade that exports the shards between its markers. Fields are static const,
+     * so unused ones are tree shaken. Every shard is an output of the build manifest, so a shard
+     * whose content did not change is neither read nor written, and shards that are no longer
+     * generated are deleted. Folder shards keep their content when an unrelated folder changes,
+     * fixed size shards move when a file is added before them.
+     */
+    private static class ShardedPathCode {
+        private static final String SHARD_HEADER = "// Generated by BuildAssets, do not edit.";
+        private static final String SHARD_FILE_PREFIX = "shard_";
+        private static final String EXPORT_LINE = "export '%s/%s';";
+
+        public static boolean generate(final BuildTarget target, final AssetCategory category,
+                                       final AssetsResult assetsResult, final BuildCache buildCache,
+                                       final BuildMetrics metrics) {
+            long start = System.nanoTime();
+            final Path facadePath = target.outputPath(assetsResult.options.projectDir);
+            final String facadeName = facadePath.getFileName().toString();
+            final String shardFolderName = facadeName.substring(0, facadeName.length() - DART_FILE.length());
+            final Path shardFolder = facadePath.resolveSibling(shardFolderName);
+            final Map<String, String> shards = render(target.className(),
+                    assetsResult.pathObjects.get(category), assetsResult.options.shardSize);
+
+            final StringBuilder exports = new StringBuilder();
+            for (final String shardFile : shards.keySet()) {
+                if (exports.length() > 0) exports.append('\n');
+                exports.append(String.format(EXPORT_LINE, shardFolderName, shardFile));
+            }
+            final String facade = exports.toString();
+            metrics.phase(BuildMetrics.PHASE_RENDER, start, shards.size() + 1);
+
+            boolean generated = true;
+            for (final Map.Entry<String, String> shard : shards.entrySet()) {
+                final Path shardPath = shardFolder.resolve(shard.getKey());
+                final WriteResult writeResult = buildCache.isOutputUpToDate(shardPath, shard.getValue())
+                        ? WriteResult.CACHED
+                        : SectionWriter.writeIfChanged(shardPath, shard.getValue(), metrics);
+                metrics.output(shardPath, writeResult);
+                if (writeResult == WriteResult.FAILED) {
+                    generated = false;
+                } else {
+                    buildCache.putOutput(shardPath, shard.getValue());
+                }
+            }
+            deleteStaleShards(shardFolder, shards.keySet(), buildCache, metrics);
+            if (!generated) return false;
+
+            final WriteResult writeResult = buildCache.isOutputUpToDate(facadePath, facade)
+                    ? WriteResult.CACHED
+                    : DartFileCreater.createDartFile(facadePath.toString(), createFacadeContent(facade), facade, metrics);
+            metrics.output(facadePath, writeResult);
+            if (writeResult == WriteResult.FAILED) return false;
+            buildCache.putOutput(facadePath, facade);
+            return true;
+        }
+
+        /**
+         * Returns the content of every shard by file name, in path order.
+         */
+        private static Map<String, String> render(final String className, final List<ImageObject> imageObjects,
+                                                  final int shardSize) {
+            final Map<String, List<ImageObject>> groups = new LinkedHashMap<>();
+            final Map<String, String> classNames = new HashMap<>();
+            final Set<String> usedClassNames = new HashSet<>();
+            final Set<String> usedFileNames = new HashSet<>();
+            final DartIdentifier dartIdentifier = new DartIdentifier();
+            for (int i = 0; i < imageObjects.size(); i++) {
+                final ImageObject item = imageObjects.get(i);
+                final String group = group(item, i, shardSize);
+                List<ImageObject> items = groups.get(group);
+                if (items == null) {
+                    items = new ArrayList<>();
+                    groups.put(group, items);
+                    final String base = className + dartIdentifier.encodeFolder(group);
+                    String shardClassName = base;
+                    for (int number = 2; usedClassNames.contains(shardClassName)
+                            || usedFileNames.contains(fileName(shardClassName.substring(className.length()))); number++) {
+                        shardClassName = base + number;
+                    }
+                    usedClassNames.add(shardClassName);
+                    usedFileNames.add(fileName(shardClassName.substring(className.length())));
+                    classNames.put(group, shardClassName);
+                }
+                items.add(item);
+            }
+
+            final Map<String, String> shards = new LinkedHashMap<>();
+            for (final Map.Entry<String, List<ImageObject>> group : groups.entrySet()) {
+                final String shardClassName = classNames.get(group.getKey());
+                final StringWriter stringWriter = new StringWriter();
+                final PrintWriter printWriter = new PrintWriter(stringWriter);
+                printWriter.println(SHARD_HEADER);
+                printWriter.println("");
+                printWriter.println("class CLASS_NAME {".replace("CLASS_NAME", shardClassName));
+                printWriter.print(AssetImage.createAssetImageDartCode(group.getValue()));
+                printWriter.println("}");
+                shards.put(fileName(shardClassName.substring(className.length())) + DART_FILE, stringWriter.toString());
+            }
+            return shards;
+        }
+
+        /**
+         * The shard of the item at index in its class: its folder under assets/, or its block of
+         * shardSize items.
+         */
+        public static String group(final ImageObject item, final int index, final int shardSize) {
+            if (shardSize != BuildOptions.SHARD_BY_FOLDER) return SHARD_FILE_PREFIX + (index / shardSize + 1);
+            final String folder = item.path.substring(0, item.path.lastIndexOf('/'));
+            return folder.equals(ASSETS_FOLDER) ? ASSETS_FOLDER : folder.substring(ASSETS_FOLDER.length() + 1);
+        }
+
+        private static String fileName(final String shardName) {
+            final StringBuilder fileName = new StringBuilder(shardName.length() + 4);
+            for (int i = 0; i < shardName.length(); i++) {
+                final char c = shardName.charAt(i);
+                if (Character.isUpperCase(c)) {
+                    if (i > 0) fileName.append('_');
+                    fileName.append(Character.toLowerCase(c));
+                } else {
+                    fileName.append(c);
+                }
+            }
+            return fileName.toString();
+        }
+
+        private static String createFacadeContent(final String facade) {
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println(BUILD_DART_TOKEN_START);
+            printWriter.println("");
+            printWriter.println(facade);
+            printWriter.println(BUILD_DART_TOKEN_END);
+            return stringWriter.toString();
+        }
+
+        private static void deleteStaleShards(final Path shardFolder, final Set<String> shardFiles,
+                                              final BuildCache buildCache,
+                                              final BuildMetrics metrics) {
+            if (!Files.isDirectory(shardFolder)) return;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(shardFolder, "*" + DART_FILE)) {
+                for (final Path path : stream) {
+                    if (shardFiles.contains(path.getFileName().toString())) continue;
+                    try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                        if (!SHARD_HEADER.equals(reader.readLine())) continue;
+                    }
+                    Files.delete(path);
+                    buildCache.removeOutput(path);
+                }
+            } catch (IOException e) {
+                metrics.err().format("Exception: %s%n", e);
+            }
+        }
+    }
+
+    private static class JsonCodeGenerator implements AssetCodeGenerator {
+        @Override
+        public String createTemplateContent(final String className, final AssetsResult assetsResult) {
+            return JsonFile.createTemplateContent(className, assetsResult.jsonItemList, assetsResult.options);
+        }
+
+        @Override
+        public String createDartCode(final AssetsResult assetsResult) {
+            return JsonFile.createJsonDartCode(assetsResult.jsonItemList, assetsResult.options);
+        }
+    }
+
+    /**
+     * Maps a file extension to its category with one hash lookup, and a target word to its generator.
+     * Other categories or extensions can be added with register.
+     */
+    private static class AssetClassifier {
+        private static final Map<String, AssetCategory> CATEGORIES = new HashMap<>();
+        private static final Map<String, AssetCodeGenerator> CODE_GENERATORS = new HashMap<>();
+
+        static {
+            for (final AssetCategory category : AssetCategory.values()) {
+                register(category,
+                        category == AssetCategory.JSON ? new JsonCodeGenerator() : new PathCodeGenerator(category),
+                        category.extensions);
+            }
+        }
+
+        public static void register(final AssetCategory category,
+                                    final AssetCodeGenerator codeGenerator,
+                                    final String... extensions) {
+            for (final String extension : extensions) {
+                CATEGORIES.put(extension.toLowerCase(Locale.ROOT), category);
+            }
+            CODE_GENERATORS.put(category.arg, codeGenerator);
+        }
+
+        /**
+         * Returns null for a file that belongs to no category, it is still listed in pubspec.yaml.
+         */
+        public static AssetCategory classify(final String fileName) {
+            final int dot = fileName.lastIndexOf('.');
+            if (dot < 0 || dot == fileName.length() - 1) return null;
+            final String extension = fileName.substring(dot + 1);
+            final AssetCategory category = CATEGORIES.get(extension);
+            return category != null ? category : CATEGORIES.get(extension.toLowerCase(Locale.ROOT));
+        }
+
+        public static AssetCodeGenerator codeGenerator(final String arg) {
+            return CODE_GENERATORS.get(arg);
+        }
+    }
+
+    private static class AssetEntry {
+        public AssetFile file;
+        public AssetCategory category;
+        public String name;
+        public ImageObject imageObject;
+        public JsonItem jsonItem;
+        public String pubspecLine;
+        public String contentHash;
+        public AssetEntry duplicateOf;
+        public String bundlePath;
+        public boolean jsonProcessed;
+
+        public String bundlePath() {
+            return bundlePath != null ? bundlePath : file.path;
+        }
+    }
+
+    /**
+     * % java BuildAssets watch [targets]
+     * Keeps the scanned assets in memory, listens on every directory under assets/ and
+     * rewrites the output once per batch of changes, after DEBOUNCE_MILLIS without new events.
+     */
+    private static class AssetWatcher {
+        private static final long DEBOUNCE_MILLIS = 300;
+        private static final String WATCH_STARTED = "Watching %s for changes, press Ctrl+C to stop";
+        private static final String WATCH_UPDATED = "Assets updated: %d files";
+
+        private final BuildOptions options;
+        private final WatchService watchService;
+        private final Map<WatchKey, String> watchedDirectories = new HashMap<>();
+        private final TreeMap<String, AssetEntry> index = new TreeMap<>(AssetScanner.PATH_ORDER);
+        private final BuildCache buildCache;
+        private final DartIdentifier dartIdentifier = new DartIdentifier();
+        private final Set<String> partialDirectories = new HashSet<>();
+
+        private AssetWatcher(final BuildOptions options, final WatchService watchService) {
+            this.options = options;
+            this.watchService = watchService;
+            this.buildCache = BuildCache.inMemory(options.projectDir);
+        }
+
+        public static void watch(final BuildOptions options) {
+            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+                final AssetWatcher assetWatcher = new AssetWatcher(options, watchService);
+                if (!assetWatcher.rescan()) return;
+                System.out.println(String.format(WATCH_STARTED, ASSETS_FOLDER));
+                assetWatcher.run();
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() throws IOException, InterruptedException {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean overflow = false;
+                do {
+                    overflow |= apply(key);
+                    key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                if (overflow) {
+                    rescan();
+                } else {
+                    regenerate();
+                }
+            }
+        }
+
+        private boolean rescan() throws IOException {
+            for (final WatchKey key : watchedDirectories.keySet()) {
+                key.cancel();
+            }
+            watchedDirectories.clear();
+            index.clear();
+            partialDirectories.clear();
+
+            final AssetTree assetTree = allFileInAssets(options.projectDir, options.assetIgnore(), BuildMetrics.NONE);
+            if (assetTree == null) return false;
+            add(assetTree);
+            return regenerate();
+        }
+
+        private boolean regenerate() {
+            if (index.isEmpty()) {
+                System.out.println(ASSETS_FOLDER_EMPTY_FILE);
+                return true;
+            }
+            final BuildMetrics metrics = BuildMetrics.create(options);
+            if (options.dedup) {
+                final long start = System.nanoTime();
+                final int hashed = AssetDeduper.dedup(options.projectDir, index.values(),
+                        options.dedupCanonical, metrics);
+                metrics.phase(BuildMetrics.PHASE_DEDUP, start, hashed);
+            }
+            if (options.processesJson()
+                    && !JsonAssets.process(options.projectDir, index.values(), options)) {
+                return false;
+            }
+            final long start = System.nanoTime();
+            final AssetsResult assetsResult = createAssetsResult(index.values(), dartIdentifier, options,
+                    partialDirectories);
+            metrics.phase(BuildMetrics.PHASE_NAME, start, index.size());
+            metrics.count(index.values());
+
+            final boolean generated = generate(options.targets, assetsResult, buildCache, metrics);
+            if (generated) {
+                System.out.println(String.format(WATCH_UPDATED, index.size()));
+            }
+            metrics.report(options);
+            return generated;
+        }
+
+        /**
+         * A folder stays partial when its ignored files are deleted, which only costs a folder
+         * listed file by file with --collapse-assets until the next full scan.
+         */
+        private void add(final AssetTree assetTree) throws IOException {
+            register(assetTree);
+            for (final AssetDirectory directory : assetTree.directories) {
+                if (directory.partial) partialDirectories.add(directory.path);
+            }
+            final List<AssetEntry> assetEntries = new ArrayList<>(assetTree.files.size());
+            for (final AssetFile file : assetTree.files) {
+                final AssetEntry assetEntry = createAssetEntry(file, dartIdentifier);
+                assetEntries.add(assetEntry);
+                index.put(file.path, assetEntry);
+            }
+            if (options.imageSizes) {
+                ImageProbe.probeAll(options.projectDir, assetEntries, BuildMetrics.NONE);
+            }
+        }
+
+        /**
+         * Files written into a new directory before it is registered raise no event,
+         * so the directory is listed again until every sub directory is registered.
+         */
+        private void addCreatedDirectory(final String path) throws IOException {
+            AssetTree assetTree = AssetScanner.scan(options.projectDir.resolve(path), path, options.assetIgnore());
+            while (register(assetTree)) {
+                assetTree = AssetScanner.scan(options.projectDir.resolve(path), path, options.assetIgnore());
+            }
+            add(assetTree);
+        }
+
+        private boolean register(final AssetTree assetTree) throws IOException {
+            boolean registered = false;
+            for (final AssetDirectory directory : assetTree.directories) {
+                final WatchKey key = options.dependsOnFileContent()
+                        ? options.projectDir.resolve(directory.path).register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY)
+                        : options.projectDir.resolve(directory.path).register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                registered |= watchedDirectories.put(key, directory.path) == null;
+            }
+            return registered;
+        }
+
+        /**
+         * Applies the events of one directory to the index, returns true when events were lost.
+         * A rename arrives as a delete of the old name and a create of the new one.
+         */
+        private boolean apply(final WatchKey key) throws IOException {
+            final String directory = watchedDirectories.get(key);
+            boolean overflow = directory == null;
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                    overflow = true;
+                    continue;
+                }
+                final String name = event.context().toString();
+                final String path = directory + "/" + name;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    if (index.remove(path) == null) {
+                        final String prefix = path + "/";
+                        index.keySet().removeIf(p -> p.startsWith(prefix));
+                    }
+                    continue;
+                }
+
+                final BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(options.projectDir.resolve(path), BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && !options.assetIgnore().isIgnored(path, name, true)) {
+                        addCreatedDirectory(path);
+                    }
+                } else if (attributes.isRegularFile() && options.assetIgnore().isIgnored(path, name, false)) {
+                    if (!name.startsWith(".")) partialDirectories.add(directory);
+                } else if (attributes.isRegularFile() && !isIgnoreFile(name)) {
+                    final AssetFile file = new AssetFile();
+                    file.path = path;
+                    file.fileName = name;
+                    file.size = attributes.size();
+                    file.lastModified = attributes.lastModifiedTime().toMillis();
+                    final AssetEntry assetEntry = createAssetEntry(file, dartIdentifier);
+                    if (options.imageSizes && assetEntry.category == AssetCategory.IMAGE) {
+                        ImageProbe.probe(options.projectDir, assetEntry, BuildMetrics.NONE);
+                    }
+                    index.put(path, assetEntry);
+                }
+            }
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+            return overflow;
+        }
+    }
+
+    /**
+     * % java BuildAssets daemon [stop]
+     * % java BuildAssets client [any other command]
+     * The daemon keeps one warm JVM listening on a Unix domain socket, ~/.build_assets/daemon.sock,
+     * readable by its owner only, and keeps the scan of each project it built (the last
+     * MAX_PROJECTS) so a run where only an output changed does not scan again. Each connection is
+     * read on its own thread, so a client that stalls blocks no other, and commands run one at a
+     * time with System.out and System.err sent to the client; the daemon never calls System.exit.
+     * A request is UTF-8 lines: REQUEST_HEADER, the working folder, one argument per line, and an
+     * empty line. The answer is the output of the command then a STATUS_LINE with its exit status.
+     * The client falls back to running the command itself only when it can not connect: once the
+     * request is sent, a lost connection is reported as a failure so a command never runs twice.
+     * Unix domain sockets need Java 16, they are reached by reflection so the file still compiles
+     * with older versions.
+     */
+    private static class AssetDaemon {
+        public static final String NOT_IN_DAEMON = "watch can not run in the daemon";
+        private static final String REQUEST_HEADER = "build-assets-request 2";
+        private static final String PING_HEADER = "build-assets-ping 2";
+        private static final String STATUS_LINE = "build-assets-exit ";
+        private static final String ARG_STOP = "stop";
+        private static final String SOCKET_FOLDER = ".build_assets";
+        private static final String SOCKET_FILE = "daemon.sock";
+        private static final String DAEMON_STARTED = "Daemon listening on %s";
+        private static final String DAEMON_RUNNING = "A daemon is already listening on %s";
+        private static final String DAEMON_STOPPED = "Daemon stopped";
+        private static final String NO_DAEMON = "No daemon is listening on %s";
+        private static final String CONNECTION_LOST = "The daemon connection was lost before the exit status: %s";
+        private static final String UNSUPPORTED = "The daemon needs Java 16 or later: %s";
+        private static final String NOT_PRIVATE = "%s must belong to you and be accessible by you only (chmod 700)";
+        private static final String PRIVATE_FOLDER = "rwx------";
+        private static final int MAX_PROJECTS = 32;
+
+        private static Path socketPath() {
+            return Paths.get(System.getProperty("user.home"), SOCKET_FOLDER, SOCKET_FILE);
+        }
+
+        private static SocketAddress address(final Path path) throws ReflectiveOperationException {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, path);
+        }
+
+        private static ProtocolFamily unix() {
+            return StandardProtocolFamily.valueOf("UNIX");
+        }
+
+        private static SocketChannel connect(final Path path) throws IOException, ReflectiveOperationException {
+            final SocketChannel channel = (SocketChannel) SocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix());
+            try {
+                channel.connect(address(path));
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public static int serve(final String[] args) {
+            final Path path = socketPath();
+            if (args.length > 0 && ARG_STOP.equals(args[0])) {
+                final int status = send(new String[]{ARG_DAEMON, ARG_STOP}, true);
+                if (status < 0) System.out.println(String.format(NO_DAEMON, path));
+                return status < 0 ? 1 : status;
+            }
+
+            final ServerSocketChannel server;
+            try {
+                if (ping()) {
+                    System.out.println(String.format(DAEMON_RUNNING, path));
+                    return 1;
+                }
+                if (!createPrivateFolder(path.getParent())) {
+                    System.err.println(String.format(NOT_PRIVATE, path.getParent()));
+                    return 1;
+                }
+                Files.deleteIfExists(path);
+                server = (ServerSocketChannel) ServerSocketChannel.class
+                        .getMethod("open", ProtocolFamily.class).invoke(null, unix());
+                server.bind(address(path));
+                restrictToOwner(path);
+            } catch (IllegalArgumentException | ReflectiveOperationException e) {
+                System.err.println(String.format(UNSUPPORTED, e));
+                return 1;
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+                return 1;
+            }
+
+            System.out.println(String.format(DAEMON_STARTED, path));
+            final Map<String, AssetsResult> scanResults = new LinkedHashMap<String, AssetsResult>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, AssetsResult> eldest) {
+                    return size() > MAX_PROJECTS;
+                }
+            };
+            final PrintStream consoleErrors = System.err;
+            final ExecutorService connections = Executors.newCachedThreadPool();
+            try {
+                while (server.isOpen()) {
+                    final SocketChannel accepted;
+                    try {
+                        accepted = server.accept();
+                    } catch (ClosedChannelException e) {
+                        break;
+                    } catch (IOException e) {
+                        consoleErrors.format("Exception: %s%n", e);
+                        continue;
+                    }
+                    connections.execute(() -> {
+                        try (SocketChannel channel = accepted) {
+                            if (!answer(channel, scanResults)) server.close();
+                        } catch (IOException e) {
+                            consoleErrors.format("Exception: %s%n", e);
+                        }
+                    });
+                }
+            } finally {
+                connections.shutdown();
+                try {
+                    server.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    System.err.format("Exception: %s%n", e);
+                }
+            }
+            System.out.println(DAEMON_STOPPED);
+            return 0;
+        }
+
+        private static void restrictToOwner(final Path path) throws IOException {
+            try {
+                Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                // not a POSIX file system, the folder keeps the permissions of the user's home
+            }
+        }
+
+        /**
+         * Creates the folder owner-only, before anything is bound in it, so no other user can reach
+         * the socket; returns false when it already exists and another user owns it or can enter it.
+         * On a file system without POSIX permissions the folder keeps those of the user's home.
+         */
+        public static boolean createPrivateFolder(final Path folder) throws IOException {
+            final Set<PosixFilePermission> ownerOnly =
+                    PosixFilePermissions.fromString(PRIVATE_FOLDER);
+            if (!Files.exists(folder, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectories(folder.getParent());
+                try {
+                    Files.createDirectory(folder, PosixFilePermissions.asFileAttribute(ownerOnly));
+                    return true;
+                } catch (UnsupportedOperationException e) {
+                    Files.createDirectory(folder);
+                    return true;
+                } catch (FileAlreadyExistsException e) {
+                    // created meanwhile, checked below
+                }
+            }
+            final PosixFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(folder, PosixFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+            } catch (UnsupportedOperationException e) {
+                return Files.isDirectory(folder);
+            }
+            final UserPrincipal user = folder.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            return attributes.isDirectory() && attributes.owner().equals(user)
+                    && ownerOnly.containsAll(attributes.permissions());
+        }
+
+        /**
+         * Reads and runs one request, returns false when it asks the daemon to stop. The request is
+         * read without holding the lock of scanResults, commands run while holding it.
+         */
+        private static boolean answer(final SocketChannel channel,
+                                      final Map<String, AssetsResult> scanResults) throws IOException {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            final String header = reader.readLine();
+            final PrintStream output = new PrintStream(
+                    Channels.newOutputStream(channel), true, "UTF-8");
+            if (PING_HEADER.equals(header)) {
+                output.println(STATUS_LINE + 0);
+                return true;
+            }
+            if (!REQUEST_HEADER.equals(header)) return true;
+            final String cwd = unescape(reader.readLine());
+            final String count = reader.readLine();
+            if (cwd == null || count == null || !count.matches("\\d{1,4}")) return true;
+            final List<String> args = new ArrayList<>();
+            for (int i = Integer.parseInt(count); i > 0; i--) {
+                final String arg = unescape(reader.readLine());
+                if (arg == null) return true;
+                args.add(arg);
+            }
+
+            final boolean stop = args.size() == 2 && ARG_DAEMON.equals(args.get(0)) && ARG_STOP.equals(args.get(1));
+            int status = 0;
+            synchronized (scanResults) {
+                final PrintStream console = System.out;
+                final PrintStream consoleErrors = System.err;
+                System.setOut(output);
+                System.setErr(output);
+                try {
+                    if (stop) {
+                        output.println(DAEMON_STOPPED);
+                    } else if (!args.isEmpty() && (ARG_DAEMON.equals(args.get(0)) || ARG_CLIENT.equals(args.get(0)))) {
+                        output.println(GUIDE);
+                        status = 1;
+                    } else {
+                        status = run(args.toArray(new String[0]), Paths.get(cwd), scanResults);
+                    }
+                } catch (RuntimeException e) {
+                    output.format("Exception: %s%n", e);
+                    status = 1;
+                } finally {
+                    System.setOut(console);
+                    System.setErr(consoleErrors);
+                }
+            }
+            output.println(STATUS_LINE + status);
+            output.flush();
+            return !stop;
+        }
+
+        public static int send(final String[] args) {
+            final int status = send(args, true);
+            return status < 0 ? run(args, Paths.get("").toAbsolutePath(), null) : status;
+        }
+
+        private static boolean ping() {
+            return send(null, false) >= 0;
+        }
+
+        /**
+         * Sends a command to the daemon and prints its output. Returns -1 when no daemon accepts the
+         * connection, null args only checks that one does; after that an error is a failed command.
+         * A request is the header, the folder, the number of arguments and one escaped argument per
+         * line, so an empty argument is kept.
+         */
+        private static int send(final String[] args, final boolean print) {
+            final Path path = socketPath();
+            if (!Files.exists(path)) return -1;
+            final SocketChannel connected;
+            try {
+                connected = connect(path);
+            } catch (IOException | ReflectiveOperationException | IllegalArgumentException e) {
+                return -1;
+            }
+            try (SocketChannel channel = connected) {
+                final StringBuilder request = new StringBuilder();
+                if (args == null) {
+                    request.append(PING_HEADER).append('\n');
+                } else {
+                    request.append(REQUEST_HEADER).append('\n');
+                    request.append(escape(Paths.get("").toAbsolutePath().toString())).append('\n');
+                    request.append(args.length).append('\n');
+                    for (final String arg : args) {
+                        request.append(escape(arg)).append('\n');
+                    }
+                }
+                final OutputStream out = Channels.newOutputStream(channel);
+                out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                final BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.startsWith(STATUS_LINE)) {
+                        return Integer.parseInt(line.substring(STATUS_LINE.length()).trim());
+                    }
+                    if (print) System.out.println(line);
+                }
+                if (print) System.err.println(String.format(CONNECTION_LOST, "end of stream"));
+                return 1;
+            } catch (IOException | NumberFormatException e) {
+                if (print) System.err.println(String.format(CONNECTION_LOST, e));
+                return 1;
+            }
+        }
+
+        private static String escape(final String text) {
+            return text.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        private static String unescape(final String line) {
+            if (line == null || line.indexOf('\\') < 0) return line;
+            final StringBuilder text = new StringBuilder(line.length());
+            for (int i = 0; i < line.length(); i++) {
+                final char c = line.charAt(i);
+                if (c != '\\' || i + 1 == line.length()) {
+                    text.append(c);
+                    continue;
+                }
+                final char escaped = line.charAt(++i);
+                text.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * % java BuildAssets monorepo [root_folder] [targets]
+     * Finds every pubspec.yaml under the root folder (the current one by default) that has the
+     * generated code markers, skipping hidden and build folders, and builds each package with the
+     * same targets and flags as an independent task on a work stealing pool. The console output of
+     * a package is buffered and printed in one block when it is done, followed by a summary.
+     * The exit status is 1 when a package failed.
+     */
+    private static class MonorepoBuild {
+        private static final String BUILD_FOLDER = "build";
+        private static final String NO_PACKAGES = "No pubspec.yaml with the generated code markers under %s";
+        private static final String ROOT_NOT_FOUND = "Folder not found: %s";
+        private static final String PACKAGE_HEADER = "== %s";
+        private static final String PACKAGE_SUMMARY = "  %-11s %10.2f ms  %s";
+        private static final String SUMMARY = "%d packages: %d generated, %d up to date, %d without assets, %d failed";
+
+        public static int run(final String[] args, final Path cwd) {
+            final boolean hasRoot = args.length > 0 && !BuildOptions.isKeyword(args[0].trim());
+            final Path root = (hasRoot ? cwd.resolve(args[0].trim()) : cwd).toAbsolutePath().normalize();
+            if (!Files.isDirectory(root)) {
+                System.out.println(String.format(ROOT_NOT_FOUND, root));
+                return 1;
+            }
+            final BuildOptions options = BuildOptions.parse(hasRoot ? Arrays.copyOfRange(args, 1, args.length) : args, cwd);
+            if (options == null) {
+                System.out.println(GUIDE);
+                return 1;
+            }
+
+            final List<Path> packages;
+            try {
+                packages = findPackages(root);
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+                return 1;
+            }
+            if (packages.isEmpty()) {
+                System.out.println(String.format(NO_PACKAGES, root));
+                return 0;
+            }
+
+            final PrintStream console = System.out;
+            final PrintStream consoleErrors = System.err;
+            final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            final int[] counts = new int[BuildStatus.values().length];
+            try {
+                final List<Callable<BuildStatus>> tasks = new ArrayList<>();
+                for (final Path packageDir : packages) {
+                    tasks.add(() -> {
+                        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        final BuildOptions packageOptions = options.forProject(packageDir);
+                        packageOptions.console = new PrintStream(buffer, true, "UTF-8");
+                        final long start = System.nanoTime();
+                        BuildStatus status;
+                        try {
+                            status = build(packageOptions, null);
+                        } catch (RuntimeException e) {
+                            packageOptions.console.format("Exception: %s%n", e);
+                            status = BuildStatus.FAILED;
+                        }
+                        final double millis = (System.nanoTime() - start) / 1e6;
+                        final String name = root.relativize(packageDir).toString();
+                        synchronized (console) {
+                            console.println(String.format(PACKAGE_HEADER, name.isEmpty() ? "." : name));
+                            console.print(buffer.toString("UTF-8"));
+                            console.println(String.format(PACKAGE_SUMMARY,
+                                    status.name().toLowerCase(Locale.ROOT).replace('_', ' '), millis,
+                                    name.isEmpty() ? "." : name));
+                        }
+                        return status;
+                    });
+                }
+                for (final Future<BuildStatus> future : pool.invokeAll(tasks)) {
+                    counts[future.get().ordinal()]++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 1;
+            } catch (ExecutionException e) {
+                consoleErrors.format("Exception: %s%n", e.getCause());
+                return 1;
+            } finally {
+                pool.shutdown();
+            }
+
+            System.out.println(String.format(SUMMARY, packages.size(),
+                    counts[BuildStatus.GENERATED.ordinal()], counts[BuildStatus.UP_TO_DATE.ordinal()],
+                    counts[BuildStatus.NO_ASSETS.ordinal()], counts[BuildStatus.FAILED.ordinal()]));
+            return counts[BuildStatus.FAILED.ordinal()] > 0 ? 1 : 0;
+        }
+
+        private static List<Path> findPackages(final Path root) throws IOException {
+            final List<Path> packages = new ArrayList<>();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) {
+                    if (dir.equals(root)) return FileVisitResult.CONTINUE;
+                    final String name = dir.getFileName().toString();
+                    return name.startsWith(".") || BUILD_FOLDER.equals(name)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+                    if (PUBSPEC_FILE_NAME.equals(file.getFileName().toString())
+                            && new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains(BUILD_GN_TOKEN_START)) {
+                        packages.add(file.getParent());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            packages.sort(Comparator.comparing(Path::toString));
+            return packages;
+        }
+    }
+
+    /**
+     * Search and install over the package catalog shipped with the script (jsons/pub_dev_packages.json),
+     * offline. The catalog is streamed once into an inverted index, saved as a binary file under
+     * ~/.build_assets and memory-mapped by later runs until the catalog changes: a query is a binary
+     * search in the sorted term table and a walk over the postings of the matched terms, without
+     * reading the catalog or loading the whole index. Packages are ranked by the weight of each term
+     * (name word, whole name, description word) times its inverse document frequency; a query word
+     * also matches the longer terms it starts with, at half the weight.
+     * `pub add` copies the install line of a package between the dependency markers of pubspec.yaml,
+     * which are added below `dependencies:` the first time.
+     */
+    private static class PubCatalog {
+        public static final String ARG_SEARCH = "search";
+        public static final String ARG_ADD = "add";
+        private static final String FLAG_CATALOG = "--catalog";
+        private static final String DEFAULT_CATALOG = "jsons/pub_dev_packages.json";
+        private static final String INDEX_FOLDER = ".build_assets";
+        private static final String INDEX_FILE = "pub_index_%s.bin";
+        private static final String DEPENDENCIES_LINE = "dependencies:";
+        private static final Pattern DEPENDENCY_SECTIONS = Pattern.compile(
+                "(dependencies|dev_dependencies|dependency_overrides):[ \\t]*(#.*)?");
+        private static final String DEPENDENCY_TOKEN_START = "  # === Packages Start ===";
+        private static final String DEPENDENCY_TOKEN_END = "  # === Packages End ===";
+        private static final String DEPENDENCY_FORMAT = "  %s\n";
+        private static final String USAGE = "Usage: java BuildAssets pub search <words> | pub add <package> [--catalog <file>]";
+        private static final String CATALOG_NOT_FOUND = "Package catalog not found: %s";
+        private static final String PACKAGE_NOT_FOUND = "Package not found in the catalog: %s";
+        private static final String NO_DEPENDENCIES = "The pubspec.yaml has no dependencies: section";
+        private static final String DEPENDENCY_TOKEN_NOT_FOUND = String.format("The pubspec.yaml must be defined:\n%s\n%s",
+                DEPENDENCY_TOKEN_START.trim(), DEPENDENCY_TOKEN_END.trim());
+        private static final String ALREADY_DEPENDENCY = "%s is already a dependency: %s";
+        private static final String DEPENDENCY_ADDED = "Added %s";
+        private static final String RESULT_FORMAT = "%-28s %s";
+        private static final String DESCRIPTION_FORMAT = "    %s";
+        private static final String SUMMARY_FORMAT = "%d of %d packages (%.3f ms)";
+        private static final int MAX_RESULTS = 10;
+        private static final int MAX_DESCRIPTION = 100;
+        private static final int MAX_PREFIX_TERMS = 64;
+        private static final int MIN_PREFIX = 2;
+        private static final int WEIGHT_NAME = 16;
+        private static final int WEIGHT_NAME_WORD = 8;
+        private static final int WEIGHT_DESCRIPTION_WORD = 1;
+        private static final int MAX_DESCRIPTION_COUNT = 3;
+
+        /*
+         * Index file, big endian:
+         * header   magic, catalog size, catalog mtime, package count, term count,
+         *          offsets of the package table, term table, postings and strings,
+         *          SHA-256 of the catalog path
+         * package  name, description and install as (string offset, byte length)
+         * term     (string offset, byte length), first posting, posting count; sorted by UTF-8 bytes
+         * posting  package, weight
+         * strings  UTF-8 bytes
+         */
+        private static final int MAGIC = 0x50554232;
+        private static final int PATH_HASH_OFFSET = 44;
+        private static final int PATH_HASH_BYTES = 32;
+        private static final int HEADER_BYTES = PATH_HASH_OFFSET + PATH_HASH_BYTES;
+        private static final int PACKAGE_BYTES = 24;
+        private static final int TERM_BYTES = 16;
+        private static final int POSTING_BYTES = 8;
+
+        private static class Package {
+            public String name = "";
+            public String description = "";
+            public String install = "";
+        }
+
+        private static class Match {
+            public final int packageId;
+            public int matchedWords;
+            public double score;
+
+            public Match(final int packageId) {
+                this.packageId = packageId;
+            }
+        }
+
+        private final ByteBuffer index;
+        private final int packageCount;
+        private final int termCount;
+        private final int packagesOffset;
+        private final int termsOffset;
+        private final int postingsOffset;
+        private final int stringsOffset;
+
+        private PubCatalog(final ByteBuffer index) {
+            this.index = index;
+            packageCount = index.getInt(20);
+            termCount = index.getInt(24);
+            packagesOffset = index.getInt(28);
+            termsOffset = index.getInt(32);
+            postingsOffset = index.getInt(36);
+            stringsOffset = index.getInt(40);
+        }
+
+        public static int run(final String[] args, final Path cwd) {
+            Path catalogPath = null;
+            final List<String> words = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                if (FLAG_CATALOG.equals(args[i].trim()) && i + 1 < args.length) {
+                    catalogPath = cwd.resolve(args[++i].trim());
+                } else if (!args[i].trim().isEmpty()) {
+                    words.add(args[i].trim());
+                }
+            }
+            final boolean search = !words.isEmpty() && ARG_SEARCH.equals(words.get(0));
+            final boolean add = words.size() == 2 && ARG_ADD.equals(words.get(0));
+            if (!search && !add) {
+                System.out.println(USAGE);
+                return 1;
+            }
+            if (catalogPath == null) catalogPath = defaultCatalog(cwd);
+            if (!Files.isRegularFile(catalogPath)) {
+                System.out.println(String.format(CATALOG_NOT_FOUND, catalogPath));
+                return 1;
+            }
+
+            final PubCatalog catalog;
+            try {
+                catalog = open(catalogPath.toAbsolutePath().normalize());
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+                return 1;
+            }
+            if (add) return catalog.add(words.get(1), cwd.resolve(PUBSPEC_FILE_NAME));
+
+            final long start = System.nanoTime();
+            final List<Match> matches = catalog.search(String.join(" ", words.subList(1, words.size())));
+            final double millis = (System.nanoTime() - start) / 1e6;
+            for (int i = 0; i < Math.min(MAX_RESULTS, matches.size()); i++) {
+                final Package found = catalog.packageAt(matches.get(i).packageId);
+                System.out.println(String.format(RESULT_FORMAT, found.name, installLine(found)));
+                if (!found.description.isEmpty()) {
+                    System.out.println(String.format(DESCRIPTION_FORMAT, found.description.length() > MAX_DESCRIPTION
+                            ? found.description.substring(0, MAX_DESCRIPTION - 3) + "..." : found.description));
+                }
+            }
+            System.out.println(String.format(SUMMARY_FORMAT, matches.size(), catalog.packageCount, millis));
+            return 0;
+        }
+
+        /**
+         * The catalog of the project folder, else the one next to the script.
+         */
+        private static Path defaultCatalog(final Path cwd) {
+            final Path local = cwd.resolve(DEFAULT_CATALOG);
+            if (Files.isRegularFile(local)) return local;
+            try {
+                final Path script = Paths.get(BuildAssets.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+                final Path scriptFolder = Files.isDirectory(script) ? script : script.getParent();
+                if (scriptFolder != null && Files.isRegularFile(scriptFolder.resolve(DEFAULT_CATALOG))) {
+                    return scriptFolder.resolve(DEFAULT_CATALOG);
+                }
+            } catch (Exception e) {
+                // launched from source or without a code source, only the project folder is searched
+            }
+            return local;
+        }
+
+        /**
+         * Maps the saved index of the catalog, or builds and saves it when it is missing or was built
+         * from another version of the catalog.
+         */
+        public static PubCatalog open(final Path catalogPath) throws IOException {
+            final long size = Files.size(catalogPath);
+            final long lastModified = Files.getLastModifiedTime(catalogPath).toMillis();
+            final byte[] pathHash;
+            try {
+                pathHash = MessageDigest.getInstance("SHA-256").digest(catalogPath.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            final Path indexPath = Paths.get(System.getProperty("user.home"), INDEX_FOLDER,
+                    String.format(INDEX_FILE, BuildCache.toHex(pathHash).substring(0, 16)));
+            if (Files.isRegularFile(indexPath)) {
+                try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+                    final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    if (isValid(mapped, size, lastModified, pathHash)) return new PubCatalog(mapped);
+                }
+            }
+
+            final ByteBuffer built = build(readCatalog(catalogPath), size, lastModified, pathHash);
+            try {
+                AssetDaemon.createPrivateFolder(indexPath.getParent());
+                final Path tempFile = Files.createTempFile(indexPath.getParent(), "." + indexPath.getFileName(), ".tmp");
+                try {
+                    try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                        final ByteBuffer content = built.duplicate();
+                        while (content.hasRemaining()) channel.write(content);
+                    }
+                    try {
+                        Files.move(tempFile, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tempFile, indexPath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            } catch (IOException e) {
+                // a read-only home only costs the next run a rebuild
+                System.err.format("Exception: %s%n", e);
+            }
+            return new PubCatalog(built);
+        }
+
+        /**
+         * An index of another catalog at a colliding file name, of another version of this catalog,
+         * or cut short by a full disk is rebuilt: the header must match and its tables must fit in
+         * the file one after the other.
+         */
+        private static boolean isValid(final ByteBuffer index, final long size, final long lastModified,
+                                       final byte[] pathHash) {
+            if (index.capacity() < HEADER_BYTES || index.getInt(0) != MAGIC
+                    || index.getLong(4) != size || index.getLong(12) != lastModified) {
+                return false;
+            }
+            for (int i = 0; i < PATH_HASH_BYTES; i++) {
+                if (index.get(PATH_HASH_OFFSET + i) != pathHash[i]) return false;
+            }
+            final long packageCount = index.getInt(20);
+            final long termCount = index.getInt(24);
+            final long packagesOffset = index.getInt(28);
+            final long termsOffset = index.getInt(32);
+            final long postingsOffset = index.getInt(36);
+            final long stringsOffset = index.getInt(40);
+            return packageCount >= 0 && termCount >= 0 && packagesOffset == HEADER_BYTES
+                    && termsOffset == packagesOffset + packageCount * PACKAGE_BYTES
+                    && postingsOffset == termsOffset + termCount * TERM_BYTES
+                    && postingsOffset <= stringsOffset && (stringsOffset - postingsOffset) % POSTING_BYTES == 0
+                    && stringsOffset <= index.capacity();
+        }
+
+        /**
+         * Streams the catalog: every object with a string "name" field is a package, wherever it is
+         * nested, so both {"packages": [...]} and a bare array are read.
+         */
+        private static List<Package> readCatalog(final Path catalogPath) throws IOException {
+            final List<Package> packages = new ArrayList<>();
+            final ArrayDeque<Package> objects = new ArrayDeque<>();
+            final ArrayDeque<String> keys = new ArrayDeque<>();
+            try (Reader reader = Files.newBufferedReader(catalogPath, StandardCharsets.UTF_8)) {
+                JsonStream.parse(reader, new JsonStream.Handler() {
+                    private boolean value;
+
+                    @Override
+                    public void token(final char type, final String text) {
+                        if (type == '{') {
+                            objects.push(new Package());
+                            keys.push("");
+                            value = false;
+                        } else if (type == '}') {
+                            final Package object = objects.pop();
+                            keys.pop();
+                            if (!object.name.isEmpty()) packages.add(object);
+                            value = false;
+                        } else if (type == ':') {
+                            value = true;
+                        } else if (type == ',' || type == '[') {
+                            value = false;
+                        } else if (type == JsonStream.STRING && !objects.isEmpty() && !value) {
+                            keys.pop();
+                            keys.push(text);
+                        } else if (type == JsonStream.STRING && !objects.isEmpty()) {
+                            final Package object = objects.peek();
+                            switch (keys.peek()) {
+                                case "name": object.name = text; break;
+                                case "description": object.description = text; break;
+                                case "install": object.install = text; break;
+                                default: break;
+                            }
+                            value = false;
+                        }
+                    }
+                });
+            }
+            return packages;
+        }
+
+        private static List<String> words(final String text) {
+            final List<String> words = new ArrayList<>();
+            final String lowerCase = text.toLowerCase(Locale.ROOT);
+            int start = -1;
+            for (int i = 0; i <= lowerCase.length(); i++) {
+                final boolean letter = i < lowerCase.length() && Character.isLetterOrDigit(lowerCase.charAt(i));
+                if (letter && start < 0) {
+                    start = i;
+                } else if (!letter && start >= 0) {
+                    if (i - start > 1) words.add(lowerCase.substring(start, i));
+                    start = -1;
+                }
+            }
+            return words;
+        }
+
+        /**
+         * Builds the index in memory: the postings are collected as (term, package, weight) in flat
+         * arrays, then placed term by term in the byte order of the terms with a counting sort.
+         */
+        private static ByteBuffer build(final List<Package> packages, final long size, final long lastModified,
+                                        final byte[] pathHash) {
+            final Map<String, Integer> termIds = new HashMap<>();
+            final List<String> terms = new ArrayList<>();
+            int[] postings = new int[packages.size() * 3 * 16];
+            int postingCount = 0;
+            final Map<String, Integer> weights = new HashMap<>();
+            for (int id = 0; id < packages.size(); id++) {
+                final Package found = packages.get(id);
+                weights.clear();
+                for (final String word : words(found.description)) {
+                    final Integer count = weights.get(word);
+                    if (count == null || count < MAX_DESCRIPTION_COUNT * WEIGHT_DESCRIPTION_WORD) {
+                        weights.put(word, (count == null ? 0 : count) + WEIGHT_DESCRIPTION_WORD);
+                    }
+                }
+                for (final String word : words(found.name)) {
+                    weights.merge(word, WEIGHT_NAME_WORD, Integer::sum);
+                }
+                weights.merge(found.name.toLowerCase(Locale.ROOT), WEIGHT_NAME, Integer::sum);
+                for (final Map.Entry<String, Integer> entry : weights.entrySet()) {
+                    Integer termId = termIds.get(entry.getKey());
+                    if (termId == null) {
+                        termId = terms.size();
+                        termIds.put(entry.getKey(), termId);
+                        terms.add(entry.getKey());
+                    }
+                    if (postingCount * 3 == postings.length) postings = Arrays.copyOf(postings, postings.length * 2);
+                    postings[postingCount * 3] = termId;
+                    postings[postingCount * 3 + 1] = id;
+                    postings[postingCount * 3 + 2] = entry.getValue();
+                    postingCount++;
+                }
+            }
+
+            final byte[][] termBytes = new byte[terms.size()][];
+            final Integer[] order = new Integer[terms.size()];
+            for (int i = 0; i < terms.size(); i++) {
+                termBytes[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                order[i] = i;
+            }
+            Arrays.sort(order, (first, second) -> compareBytes(termBytes[first], termBytes[second]));
+            final int[] firstPosting = new int[terms.size() + 1];
+            for (int p = 0; p < postingCount; p++) {
+                firstPosting[postings[p * 3] + 1]++;
+            }
+            final int[] termCounts = Arrays.copyOfRange(firstPosting, 1, firstPosting.length);
+            int next = 0;
+            for (final int termId : order) {
+                firstPosting[termId] = next;
+                next += termCounts[termId];
+            }
+
+            final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            final int packagesOffset = HEADER_BYTES;
+            final int termsOffset = packagesOffset + packages.size() * PACKAGE_BYTES;
+            final int postingsOffset = termsOffset + terms.size() * TERM_BYTES;
+            final int stringsOffset = postingsOffset + postingCount * POSTING_BYTES;
+            final ByteBuffer buffer = ByteBuffer.allocate(stringsOffset);
+            buffer.putInt(MAGIC).putLong(size).putLong(lastModified)
+                    .putInt(packages.size()).putInt(terms.size())
+                    .putInt(packagesOffset).putInt(termsOffset).putInt(postingsOffset).putInt(stringsOffset)
+                    .put(pathHash);
+            for (final Package found : packages) {
+                for (final String text : new String[]{found.name, found.description, found.install}) {
+                    final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    buffer.putInt(strings.size()).putInt(bytes.length);
+                    strings.write(bytes, 0, bytes.length);
+                }
+            }
+            for (final int termId : order) {
+                buffer.putInt(strings.size()).putInt(termBytes[termId].length)
+                        .putInt(firstPosting[termId]).putInt(termCounts[termId]);
+                strings.write(termBytes[termId], 0, termBytes[termId].length);
+            }
+            for (int p = 0; p < postingCount; p++) {
+                final int at = postingsOffset + firstPosting[postings[p * 3]]++ * POSTING_BYTES;
+                buffer.putInt(at, postings[p * 3 + 1]).putInt(at + 4, postings[p * 3 + 2]);
+            }
+
+            final ByteBuffer index = ByteBuffer.allocate(stringsOffset + strings.size());
+            buffer.clear();
+            index.put(buffer).put(strings.toByteArray());
+            index.flip();
+            return index;
+        }
+
+        private static int compareBytes(final byte[] a, final byte[] b) {
+            for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                if (a[i] != b[i]) return (a[i] & 0xff) - (b[i] & 0xff);
+            }
+            return a.length - b.length;
+        }
+
+        private String stringAt(final int offset, final int length) {
+            final byte[] bytes = new byte[length];
+            final ByteBuffer strings = index.duplicate();
+            strings.position(stringsOffset + offset);
+            strings.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        public Package packageAt(final int id) {
+            final int at = packagesOffset + id * PACKAGE_BYTES;
+            final Package found = new Package();
+            found.name = stringAt(index.getInt(at), index.getInt(at + 4));
+            found.description = stringAt(index.getInt(at + 8), index.getInt(at + 12));
+            found.install = stringAt(index.getInt(at + 16), index.getInt(at + 20));
+            return found;
+        }
+
+        /**
+         * Compares the term at index i with the key, as unsigned bytes; a term that starts with the key
+         * compares as greater.
+         */
+        private int compareTerm(final int i, final byte[] key) {
+            final int at = termsOffset + i * TERM_BYTES;
+            final int offset = stringsOffset + index.getInt(at);
+            final int length = index.getInt(at + 4);
+            for (int j = 0; j < Math.min(length, key.length); j++) {
+                final int difference = (index.get(offset + j) & 0xff) - (key[j] & 0xff);
+                if (difference != 0) return difference;
+            }
+            return length - key.length;
+        }
+
+        private boolean termStartsWith(final int i, final byte[] key) {
+            final int at = termsOffset + i * TERM_BYTES;
+            final int offset = stringsOffset + index.getInt(at);
+            if (index.getInt(at + 4) < key.length) return false;
+            for (int j = 0; j < key.length; j++) {
+                if (index.get(offset + j) != key[j]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the first term not smaller than the key.
+         */
+        private int lowerBound(final byte[] key) {
+            int low = 0;
+            int high = termCount;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (compareTerm(middle, key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Adds the postings of term i to the matches, and the packages found to the ones the query
+         * word matched.
+         */
+        private void score(final int i, final double factor, final Map<Integer, Match> matches, final Set<Integer> matched) {
+            final int at = termsOffset + i * TERM_BYTES;
+            final int first = index.getInt(at + 8);
+            final int count = index.getInt(at + 12);
+            final double idf = Math.log(1 + (double) packageCount / count);
+            for (int p = 0; p < count; p++) {
+                final int posting = postingsOffset + (first + p) * POSTING_BYTES;
+                final Match match = matches.computeIfAbsent(index.getInt(posting), Match::new);
+                match.score += index.getInt(posting + 4) * idf * factor;
+                matched.add(match.packageId);
+            }
+        }
+
+        /**
+         * Packages matching any word of the query, those matching more of the words first, then by score.
+         */
+        public List<Match> search(final String query) {
+            final Map<Integer, Match> matches = new HashMap<>();
+            for (final String word : new LinkedHashSet<>(words(query))) {
+                final byte[] key = word.getBytes(StandardCharsets.UTF_8);
+                final Set<Integer> matched = new HashSet<>();
+                int i = lowerBound(key);
+                if (i < termCount && compareTerm(i, key) == 0) {
+                    score(i, 1, matches, matched);
+                    i++;
+                }
+                if (key.length >= MIN_PREFIX) {
+                    for (int expanded = 0; i < termCount && expanded < MAX_PREFIX_TERMS && termStartsWith(i, key); i++, expanded++) {
+                        score(i, 0.5, matches, matched);
+                    }
+                }
+                for (final Integer id : matched) {
+                    matches.get(id).matchedWords++;
+                }
+            }
+
+            final List<Match> sorted = new ArrayList<>(matches.values());
+            sorted.sort(Comparator.comparingInt((Match match) -> -match.matchedWords)
+                    .thenComparingDouble(match -> -match.score)
+                    .thenComparingInt(match -> match.packageId));
+            return sorted;
+        }
+
+        private int find(final String name) {
+            final byte[] key = name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+            final int i = lowerBound(key);
+            if (i == termCount || compareTerm(i, key) != 0) return -1;
+            final int at = termsOffset + i * TERM_BYTES;
+            final int first = index.getInt(at + 8);
+            for (int p = 0; p < index.getInt(at + 12); p++) {
+                final int id = index.getInt(postingsOffset + (first + p) * POSTING_BYTES);
+                if (packageAt(id).name.equals(name)) return id;
+            }
+            return -1;
+        }
+
+        /**
+         * The install line as a pubspec.yaml entry: "name: version", "any" when the catalog has none.
+         */
+        private static String installLine(final Package found) {
+            final String install = found.install.trim();
+            if (install.startsWith(found.name + ":")) return install;
+            if (install.startsWith(found.name + " ")) {
+                return found.name + ": " + install.substring(found.name.length()).trim();
+            }
+            return found.name + ": " + (install.isEmpty() ? "any" : install);
+        }
+
+        public int add(final String name, final Path pubspecPath) {
+            final int id = find(name);
+            if (id < 0) {
+                System.out.println(String.format(PACKAGE_NOT_FOUND, name));
+                return 1;
+            }
+            final String line = installLine(packageAt(id));
+
+            final String content;
+            try {
+                content = new String(Files.readAllBytes(pubspecPath), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+                return 1;
+            }
+
+            final List<String> lines = new ArrayList<>();
+            final int start = content.indexOf(DEPENDENCY_TOKEN_START);
+            final int end = start < 0 ? -1 : content.indexOf(DEPENDENCY_TOKEN_END, start);
+            if (start >= 0 && end < 0) {
+                System.out.println(DEPENDENCY_TOKEN_NOT_FOUND);
+                return 1;
+            }
+            final String before = start < 0 ? content : content.substring(0, start) + content.substring(end);
+            final String existing = dependencyLine(before, name);
+            if (existing != null) {
+                System.out.println(String.format(ALREADY_DEPENDENCY, name, existing));
+                return 0;
+            }
+            if (start >= 0) {
+                for (final String sectionLine : content.substring(start + DEPENDENCY_TOKEN_START.length(), end).split("\n")) {
+                    final String dependency = sectionLine.trim();
+                    if (dependency.equals(line)) {
+                        System.out.println(String.format(ALREADY_DEPENDENCY, name, line));
+                        return 0;
+                    }
+                    if (!dependency.isEmpty() && !dependency.startsWith(CONFIG_COMMENT)
+                            && !dependency.startsWith(name + ":")) {
+                        lines.add(dependency);
+                    }
+                }
+            }
+            lines.add(line);
+            lines.sort(String::compareTo);
+            final StringBuilder section = new StringBuilder("\n");
+            for (final String dependency : lines) {
+                section.append(String.format(DEPENDENCY_FORMAT, dependency));
+            }
+
+            if (start < 0) {
+                final Matcher dependencies = Pattern.compile("(?m)^" + DEPENDENCIES_LINE + "[ \\t]*(#.*)?$").matcher(content);
+                if (!dependencies.find()) {
+                    System.out.println(NO_DEPENDENCIES);
+                    return 1;
+                }
+                final int splice = dependencies.end();
+                try {
+                    SectionWriter.writeAtomically(pubspecPath, writer -> {
+                        writer.write(content, 0, splice);
+                        writer.write("\n" + DEPENDENCY_TOKEN_START + section + DEPENDENCY_TOKEN_END);
+                        writer.write(content, splice, content.length() - splice);
+                    });
+                } catch (IOException e) {
+                    System.err.format("Exception: %s%n", e);
+                    return 1;
+                }
+            } else if (SectionWriter.replaceSection(pubspecPath, DEPENDENCY_TOKEN_START, DEPENDENCY_TOKEN_END,
+                    section.toString(), DEPENDENCY_TOKEN_NOT_FOUND, BuildMetrics.NONE) == WriteResult.FAILED) {
+                return 1;
+            }
+            System.out.println(String.format(DEPENDENCY_ADDED, line));
+            return 0;
+        }
+
+        /**
+         * Returns the line of pubspec.yaml that already declares the package: a key at the first
+         * indentation level of dependencies:, dev_dependencies: or dependency_overrides:, so keys
+         * such as path: or sdk: nested under another package do not count.
+         */
+        private static String dependencyLine(final String content, final String name) {
+            boolean inDependencies = false;
+            int indent = -1;
+            for (final String line : content.split("\r?\n")) {
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith(CONFIG_COMMENT)) continue;
+                int lineIndent = 0;
+                while (lineIndent < line.length() && (line.charAt(lineIndent) == ' ' || line.charAt(lineIndent) == '\t')) {
+                    lineIndent++;
+                }
+                if (lineIndent == 0) {
+                    inDependencies = DEPENDENCY_SECTIONS.matcher(line).matches();
+                    indent = -1;
+                    continue;
+                }
+                if (!inDependencies) continue;
+                if (indent < 0) indent = lineIndent;
+                if (lineIndent != indent) continue;
+                final int colon = trimmed.indexOf(':');
+                if (colon > 0 && trimmed.substring(0, colon).trim().equals(name)) return trimmed;
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * % java BuildAssets benchmark [number_of_files ...]
+     * Builds a synthetic asset tree per size in a temp folder, with nested and resolution folders,
+     * mixed extensions and snake, kebab and clashing names, then measures each stage on its own.
+     * Every stage is warmed up before it is timed. The allocation rate is the bytes allocated by
+     * all threads during the timed loop, read from com.sun.management.ThreadMXBean when available.
+     */
+    private static class AssetBenchmark {
+        private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+        private static final long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private static final long MEASURE_NANOS = TimeUnit.SECONDS.toNanos(2);
+        private static final long SEED = 20200704L;
+        private static final String[] FOLDERS = {
+                "icons", "images", "illustrations", "flags", "onboarding", "json", "fonts", "sounds", "en", "vi"
+        };
+        private static final String[] VARIANTS = {"1.5x", "2.0x", "3.0x"};
+        private static final String[] EXTENSIONS = {
+                "png", "png", "png", "PNG", "svg", "webp", "jpeg", "gif", "json", "json", "ttf", "mp3", "riv", "txt"
+        };
+        private static final String[] WORDS = {
+                "ic", "home", "back", "arrow", "bg", "main", "screen", "logo", "avatar", "btn", "close", "2x", "dark",
+                "light", "config", "user", "class"
+        };
+        private static final String HEADER_FORMAT = "%-28s %8s %12s %12s %14s";
+        private static final String RESULT_FORMAT = "%-28s %8d %12.1f %12.3f %14s";
+        private static final String PUBSPEC_TEMPLATE = "name: benchmark\nflutter:\n  %s\n  %s\n";
+        private static final String DART_TEMPLATE = "class Benchmark {\n%s\n%s\n}\n";
+
+        private static volatile long sink;
+
+        private interface Stage {
+            long run() throws Exception;
+        }
+
+        public static void run(final String[] args) {
+            final int[] sizes = new int[args.length == 0 ? DEFAULT_SIZES.length : args.length];
+            try {
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = args.length == 0 ? DEFAULT_SIZES[i] : Integer.parseInt(args[i]);
+                }
+            } catch (NumberFormatException e) {
+                System.out.println(GUIDE);
+                return;
+            }
+
+            System.out.println(String.format(HEADER_FORMAT, "stage", "files", "ops/s", "ms/op", "KB alloc/op"));
+            for (final int size : sizes) {
+                Path projectDir = null;
+                try {
+                    projectDir = Files.createTempDirectory("build_assets_benchmark");
+                    createAssetTree(projectDir, size);
+                    measureStages(projectDir, size);
+                } catch (Exception e) {
+                    System.err.format("Exception: %s%n", e);
+                } finally {
+                    if (projectDir != null) delete(projectDir);
+                }
+            }
+        }
+
+        private static void createAssetTree(final Path projectDir, final int size) throws IOException {
+            final Random random = new Random(SEED);
+            final StringBuilder path = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                path.setLength(0);
+                path.append(ASSETS_FOLDER);
+                final int depth = random.nextInt(5);
+                for (int level = 0; level < depth; level++) {
+                    path.append('/').append(FOLDERS[random.nextInt(FOLDERS.length)]);
+                }
+                if (random.nextInt(5) == 0) {
+                    path.append('/').append(VARIANTS[random.nextInt(VARIANTS.length)]);
+                }
+                final Path folder = projectDir.resolve(path.toString());
+                Files.createDirectories(folder);
+
+                path.setLength(0);
+                final int words = 1 + random.nextInt(3);
+                for (int word = 0; word < words; word++) {
+                    if (word > 0) path.append(random.nextInt(4) == 0 ? '-' : '_');
+                    path.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                if (random.nextBoolean()) path.append('_').append(i);
+                path.append('.').append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]);
+                final Path file = folder.resolve(path.toString());
+                if (!Files.exists(file)) Files.createFile(file);
+            }
+        }
+
+        private static void measureStages(final Path projectDir, final int size) throws Exception {
+            final Path assetsDir = projectDir.resolve(ASSETS_FOLDER);
+            final AssetTree assetTree = AssetScanner.scan(assetsDir, ASSETS_FOLDER, AssetIgnore.NONE);
+            final int files = assetTree.files.size();
+            final DartIdentifier dartIdentifier = new DartIdentifier();
+            final List<AssetEntry> assetEntries = new ArrayList<>(files);
+            for (final AssetFile assetFile : assetTree.files) {
+                assetEntries.add(createAssetEntry(assetFile, dartIdentifier));
+            }
+            final AssetsResult assetsResult = createAssetsResult(assetEntries, dartIdentifier, new BuildOptions(),
+                    new HashSet<>());
+
+            measure("search", files, () -> AssetScanner.scan(assetsDir, ASSETS_FOLDER, AssetIgnore.NONE).files.size());
+            measure("classify", files, () -> {
+                long categories = 0;
+                for (final AssetFile assetFile : assetTree.files) {
+                    final AssetCategory category = AssetClassifier.classify(assetFile.fileName);
+                    if (category != null) categories += category.ordinal();
+                }
+                return categories;
+            });
+            measure("formatName", files, () -> {
+                long length = 0;
+                for (final AssetFile assetFile : assetTree.files) {
+                    length += dartIdentifier.encode(assetFile.fileName, false).length();
+                }
+                return length;
+            });
+            measure("readFolderAssetsContent", files,
+                    () -> readFolderAssetsContent(projectDir, new BuildOptions().forProject(projectDir),
+                            BuildMetrics.NONE).textAssets.length());
+            measure("createAssetImageDartCode", files,
+                    () -> AssetImage.createAssetImageDartCode(assetsResult.imageObjects).length());
+            measure("createJsonDartCode", files,
+                    () -> JsonFile.createJsonDartCode(assetsResult.jsonItemList, assetsResult.options).length());
+
+            final Path pubspec = projectDir.resolve(PUBSPEC_FILE_NAME);
+            Files.write(pubspec, String.format(PUBSPEC_TEMPLATE, BUILD_GN_TOKEN_START, BUILD_GN_TOKEN_END)
+                    .getBytes(StandardCharsets.UTF_8));
+            final String[] sections = {
+                    String.format("\n%s  ", assetsResult.textAssets),
+                    String.format("\n%s%s  ", assetsResult.textAssets, String.format(ONE_LINE_RES_PATH_FORMAT, "x"))
+            };
+            final int[] turn = {0};
+            measure("updatePubspecYamlFile", files, () -> SectionWriter.replaceSection(pubspec,
+                    BUILD_GN_TOKEN_START, BUILD_GN_TOKEN_END, sections[turn[0]++ & 1], GN_TOKEN_NOT_FOUND,
+                    BuildMetrics.NONE).ordinal());
+            measure("updatePubspecYamlFile same", files, () -> SectionWriter.replaceSection(pubspec,
+                    BUILD_GN_TOKEN_START, BUILD_GN_TOKEN_END, sections[0], GN_TOKEN_NOT_FOUND,
+                    BuildMetrics.NONE).ordinal());
+
+            final Path dartFile = projectDir.resolve("benchmark" + DART_FILE);
+            Files.write(dartFile, String.format(DART_TEMPLATE, BUILD_DART_TOKEN_START, BUILD_DART_TOKEN_END)
+                    .getBytes(StandardCharsets.UTF_8));
+            final String[] dartCodes = {
+                    AssetImage.createAssetImageDartCode(assetsResult.imageObjects),
+                    AssetImage.createAssetImageDartCode(assetsResult.imageObjects) + "\n"
+            };
+            measure("updateDartFile", files, () -> updateDartFile(dartFile, dartCodes[turn[0]++ & 1]).ordinal());
+            measure("updateDartFile same", files, () -> updateDartFile(dartFile, dartCodes[0]).ordinal());
+        }
+
+        private static void measure(final String stage, final int files, final Stage body) throws Exception {
+            final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+            while (System.nanoTime() < warmupEnd) {
+                sink += body.run();
+            }
+
+            final long allocatedBefore = allocatedBytes();
+            final long start = System.nanoTime();
+            long operations = 0;
+            long elapsed;
+            do {
+                sink += body.run();
+                operations++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASURE_NANOS);
+            final long allocatedAfter = allocatedBytes();
+
+            final String allocated = allocatedBefore < 0 || allocatedAfter < 0
+                    ? "n/a"
+                    : String.format(Locale.ROOT, "%.1f", (allocatedAfter - allocatedBefore) / 1024.0 / operations);
+            System.out.println(String.format(Locale.ROOT, RESULT_FORMAT, stage, files,
+                    operations * 1e9 / elapsed, elapsed / 1e6 / operations, allocated));
+        }
+
+        private static long allocatedBytes() {
+            final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return -1;
+            final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (!allocationBean.isThreadAllocatedMemorySupported()) return -1;
+            long total = 0;
+            for (final long bytes : allocationBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds())) {
+                if (bytes > 0) total += bytes;
+            }
+            return total;
+        }
+
+        private static void delete(final Path root) {
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+                            throws IOException {
+                        Files.delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(final Path dir, final IOException e) throws IOException {
+                        Files.delete(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                System.err.format("Exception: %s%n", e);
+            }
+        }
+    }
+
+    /**
+     * Timings and counts of a run, printed with --profile and written as JSON with --metrics <file>.
+     * Phases: scan (walk assets/), classify (category and base name per file), probe (image headers,
+     * with --image-sizes), dedup (content hashes, with --dedup), json (validate,
+     * minify and inline JSON, with --json-*), name (unique names,
+     * generated lines and pubspec text), render (generated code per output), read and write
+     * (output files). Phases of concurrent outputs add up, so they can exceed the total time.
+     */
+    private static class BuildMetrics {
+        public static final String PHASE_SCAN = "scan";
+        public static final String PHASE_CLASSIFY = "classify";
+        public static final String PHASE_PROBE = "probe";
+        public static final String PHASE_DEDUP = "dedup";
+        public static final String PHASE_JSON = "json";
+        public static final String PHASE_NAME = "name";
+        public static final String PHASE_RENDER = "render";
+        public static final String PHASE_READ = "read";
+        public static final String PHASE_WRITE = "write";
+        private static final String[] PHASES = {
+                PHASE_SCAN, PHASE_CLASSIFY, PHASE_PROBE, PHASE_DEDUP, PHASE_JSON, PHASE_NAME, PHASE_RENDER, PHASE_READ, PHASE_WRITE
+        };
+        private static final String OTHER_FILES = "other";
+        private static final String PHASE_FORMAT = "  %-13s %10.2f ms %8d";
+        private static final String COUNT_FORMAT = "  %-13s %10d";
+        private static final String OUTPUT_FORMAT = "  %-13s %s";
+        private static final String TOTAL_FORMAT = "%s%s (%.2f ms)";
+
+        public static final BuildMetrics NONE = new BuildMetrics(false, Paths.get(""), null);
+
+        private final boolean enabled;
+        private final Path projectDir;
+        private final PrintStream console;
+        private final long startNanos = System.nanoTime();
+        private final String startTime = curentTime();
+        private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> phaseCounts = new ConcurrentHashMap<>();
+        private final Map<String, Integer> fileCounts = new LinkedHashMap<>();
+        private final Map<String, WriteResult> outputs = new ConcurrentSkipListMap<>();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        public volatile boolean upToDate;
+
+        private BuildMetrics(final boolean enabled, final Path projectDir, final PrintStream console) {
+            this.enabled = enabled;
+            this.projectDir = projectDir;
+            this.console = console;
+            for (final String phase : PHASES) {
+                phaseNanos.put(phase, new LongAdder());
+                phaseCounts.put(phase, new LongAdder());
+            }
+        }
+
+        public static BuildMetrics create(final BuildOptions options) {
+            final boolean enabled = options.profile || options.metricsFile != null;
+            return enabled || options.console != null
+                    ? new BuildMetrics(enabled, options.projectDir, options.console) : NONE;
+        }
+
+        /**
+         * The console of the build, which every stage prints to whatever thread it runs on.
+         */
+        public PrintStream out() {
+            return console != null ? console : System.out;
+        }
+
+        public PrintStream err() {
+            return console != null ? console : System.err;
+        }
+
+        public void phase(final String phase, final long startNanos, final long count) {
+            if (!enabled) return;
+            phaseNanos.get(phase).add(System.nanoTime() - startNanos);
+            phaseCounts.get(phase).add(count);
+        }
+
+        public void read(final long bytes, final long startNanos) {
+            if (!enabled) return;
+            phase(PHASE_READ, startNanos, 1);
+            bytesRead.add(bytes);
+        }
+
+        public void written(final long bytes, final long startNanos) {
+            if (!enabled) return;
+            phase(PHASE_WRITE, startNanos, 1);
+            bytesWritten.add(bytes);
+        }
+
+        public void output(final Path path, final WriteResult writeResult) {
+            if (!enabled) return;
+            outputs.put((path.startsWith(projectDir) ? projectDir.relativize(path) : path).toString(), writeResult);
+        }
+
+        public int countCategory(final Collection<AssetEntry> assetEntries, final AssetCategory category) {
+            int count = 0;
+            for (final AssetEntry assetEntry : assetEntries) {
+                if (assetEntry.category == category) count++;
+            }
+            return count;
+        }
+
+        public void count(final Collection<AssetEntry> assetEntries) {
+            if (!enabled) return;
+            final int[] counts = new int[AssetCategory.values().length + 1];
+            for (final AssetEntry assetEntry : assetEntries) {
+                counts[assetEntry.category == null ? counts.length - 1 : assetEntry.category.ordinal()]++;
+            }
+            synchronized (fileCounts) {
+                for (final AssetCategory category : AssetCategory.values()) {
+                    fileCounts.put(category.name().toLowerCase(Locale.ROOT), counts[category.ordinal()]);
+                }
+                fileCounts.put(OTHER_FILES, counts[counts.length - 1]);
+            }
+        }
+
+        public void report(final BuildOptions options) {
+            if (!enabled) return;
+            final double totalMillis = (System.nanoTime() - startNanos) / 1e6;
+            if (options.profile) {
+                out().println(toText(totalMillis));
+            }
+            if (options.metricsFile != null) {
+                final String json = toJson(totalMillis);
+                try {
+                    final Path path = options.projectDir.resolve(options.metricsFile);
+                    Files.createDirectories(path.getParent());
+                    SectionWriter.writeAtomically(path, writer -> writer.write(json));
+                } catch (IOException e) {
+                    err().format("Exception: %s%n", e);
+                }
+            }
+        }
+
+        private String toText(final double totalMillis) {
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println(START + startTime);
+            if (upToDate) printWriter.println(ASSETS_UP_TO_DATE);
+            for (final String phase : PHASES) {
+                printWriter.println(String.format(Locale.ROOT, PHASE_FORMAT, phase,
+                        phaseNanos.get(phase).sum() / 1e6, phaseCounts.get(phase).sum()));
+            }
+            synchronized (fileCounts) {
+                for (final Map.Entry<String, Integer> fileCount : fileCounts.entrySet()) {
+                    printWriter.println(String.format(Locale.ROOT, COUNT_FORMAT, fileCount.getKey(), fileCount.getValue()));
+                }
+            }
+            printWriter.println(String.format(Locale.ROOT, COUNT_FORMAT, "bytes read", bytesRead.sum()));
+            printWriter.println(String.format(Locale.ROOT, COUNT_FORMAT, "bytes written", bytesWritten.sum()));
+            for (final Map.Entry<String, WriteResult> output : outputs.entrySet()) {
+                printWriter.println(String.format(Locale.ROOT, OUTPUT_FORMAT,
+                        output.getValue().name().toLowerCase(Locale.ROOT), output.getKey()));
+            }
+            printWriter.print(String.format(Locale.ROOT, TOTAL_FORMAT, FINISH, curentTime(), totalMillis));
+            return stringWriter.toString();
+        }
+
+        private String toJson(final double totalMillis) {
+            final StringBuilder json = new StringBuilder();
+            json.append("{\n  \"start\": ").append(jsonString(startTime));
+            json.append(",\n  \"finish\": ").append(jsonString(curentTime()));
+            json.append(",\n  \"totalMillis\": ").append(String.format(Locale.ROOT, "%.3f", totalMillis));
+            json.append(",\n  \"upToDate\": ").append(upToDate);
+            json.append(",\n  \"phases\": {");
+            for (int i = 0; i < PHASES.length; i++) {
+                json.append(i == 0 ? "\n" : ",\n").append("    ").append(jsonString(PHASES[i]))
+                        .append(": {\"millis\": ")
+                        .append(String.format(Locale.ROOT, "%.3f", phaseNanos.get(PHASES[i]).sum() / 1e6))
+                        .append(", \"count\": ").append(phaseCounts.get(PHASES[i]).sum()).append('}');
+            }
+            json.append("\n  },\n  \"files\": {");
+            synchronized (fileCounts) {
+                boolean first = true;
+                for (final Map.Entry<String, Integer> fileCount : fileCounts.entrySet()) {
+                    json.append(first ? "\n" : ",\n").append("    ").append(jsonString(fileCount.getKey()))
+                            .append(": ").append(fileCount.getValue());
+                    first = false;
+                }
+            }
+            json.append("\n  },\n  \"bytesRead\": ").append(bytesRead.sum());
+            json.append(",\n  \"bytesWritten\": ").append(bytesWritten.sum());
+            json.append(",\n  \"outputs\": [");
+            boolean first = true;
+            for (final Map.Entry<String, WriteResult> output : outputs.entrySet()) {
+                final WriteResult writeResult = output.getValue();
+                json.append(first ? "\n" : ",\n").append("    {\"path\": ").append(jsonString(output.getKey()))
+                        .append(", \"result\": ").append(jsonString(writeResult.name().toLowerCase(Locale.ROOT)))
+                        .append(", \"skipped\": ")
+                        .append(writeResult == WriteResult.UNCHANGED || writeResult == WriteResult.CACHED)
+                        .append('}');
+                first = false;
+            }
+            json.append("\n  ]\n}\n");
+            return json.toString();
+        }
+
+        private static String jsonString(final String value) {
+            final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    quoted.append('\\').append(c);
+                } else if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+
+    private static class ImageObject {
+        public String fileName;
+        public String path;
+        public String line;
+        public double width;
+        public double height;
+    }
+
+    /**
+     * Finds files with the same content, with --dedup. Files are grouped by size first and only
+     * the groups of two or more are hashed, in parallel, with SHA-256 over memory-mapped regions,
+     * so a tree of unique sizes costs no read at all. Empty files are not reported. A hash is kept on its AssetEntry, which
+     * watch mode reuses until the file changes. The first file of a group in path order is the
+     * canonical one.
+     */
+    private static class AssetDeduper {
+        private static final String DUPLICATES_FOUND = "Duplicate assets: %d groups, %d bytes in copies";
+        private static final String DUPLICATE_GROUP = "  %s (%d bytes)";
+        private static final String DUPLICATE_COPY = "    = %s";
+        private static final long REGION_BYTES = 64L * 1024 * 1024;
+
+        /**
+         * Reports the groups of identical files, and in canonical mode marks every copy with the
+         * path of its canonical file. Returns the number of files hashed.
+         */
+        public static int dedup(final Path directoryProject, final Collection<AssetEntry> assetEntries,
+                                final boolean canonical, final BuildMetrics metrics) {
+            final Map<Long, List<AssetEntry>> bySize = new HashMap<>();
+            for (final AssetEntry assetEntry : assetEntries) {
+                assetEntry.duplicateOf = null;
+                bySize.computeIfAbsent(assetEntry.file.size, size -> new ArrayList<>(1)).add(assetEntry);
+            }
+            final List<AssetEntry> candidates = new ArrayList<>();
+            for (final List<AssetEntry> sameSize : bySize.values()) {
+                if (sameSize.size() > 1 && sameSize.get(0).file.size > 0) candidates.addAll(sameSize);
+            }
+            try {
+                AssetScanner.POOL.submit(() -> candidates.parallelStream()
+                        .filter(assetEntry -> assetEntry.contentHash == null)
+                        .forEach(assetEntry -> assetEntry.contentHash = hash(directoryProject, assetEntry.file, metrics))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            } catch (ExecutionException e) {
+                metrics.err().format("Exception: %s%n", e.getCause());
+                return 0;
+            }
+
+            final Map<String, List<AssetEntry>> byContent = new LinkedHashMap<>();
+            for (final AssetEntry assetEntry : assetEntries) {
+                if (assetEntry.contentHash == null || bySize.get(assetEntry.file.size).size() < 2) continue;
+                byContent.computeIfAbsent(assetEntry.file.size + ":" + assetEntry.contentHash,
+                        key -> new ArrayList<>(2)).add(assetEntry);
+            }
+            final StringBuilder report = new StringBuilder();
+            int groups = 0;
+            long wasted = 0;
+            for (final List<AssetEntry> group : byContent.values()) {
+                if (group.size() < 2) continue;
+                final AssetEntry first = group.get(0);
+                groups++;
+                wasted += first.file.size * (group.size() - 1);
+                report.append(String.format(DUPLICATE_GROUP, first.file.path, first.file.size)).append('\n');
+                for (int i = 1; i < group.size(); i++) {
+                    report.append(String.format(DUPLICATE_COPY, group.get(i).file.path)).append('\n');
+                    if (canonical) group.get(i).duplicateOf = first;
+                }
+            }
+            if (groups > 0) {
+                metrics.out().println(String.format(DUPLICATES_FOUND, groups, wasted));
+                metrics.out().print(report);
+            }
+            return candidates.size();
+        }
+
+        private static String hash(final Path directoryProject, final AssetFile file, final BuildMetrics metrics) {
+            try (FileChannel channel = FileChannel.open(directoryProject.resolve(file.path), StandardOpenOption.READ)) {
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                final long size = channel.size();
+                for (long position = 0; position < size; position += REGION_BYTES) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(REGION_BYTES, size - position)));
+                }
+                return BuildCache.toHex(digest.digest());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                metrics.err().format("Exception: %s%n", e);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the intrinsic size of an image from its header, with --image-sizes.
+     * PNG, GIF, BMP and WebP keep the size in their first 30 bytes, JPEG in its SOF segment which is
+     * reached by jumping from segment header to segment header, SVG in the width, height or viewBox
+     * of its root tag. Every read is a positional FileChannel read into a per-thread buffer of
+     * HEADER_BYTES, so an image costs a few small reads whatever its size.
+     */
+    private static class ImageProbe {
+        public static final String[] SIZE_SUFFIXES = {"Width", "Height", "AspectRatio"};
+        private static final int HEADER_BYTES = 4096;
+        private static final int MAX_JPEG_SEGMENTS = 256;
+        private static final Pattern SVG_TAG = Pattern.compile("<svg\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+        private static final Pattern SVG_VIEW_BOX = Pattern.compile(
+                "(?:^|\\s)viewBox\\s*=\\s*[\"']\\s*[-+.\\deE]+[\\s,]+[-+.\\deE]+[\\s,]+([-+.\\deE]+)[\\s,]+([-+.\\deE]+)");
+        private static final Pattern SVG_WIDTH = Pattern.compile("(?:^|\\s)width\\s*=\\s*[\"']\\s*([\\d.]+)\\s*(px)?\\s*[\"']");
+        private static final Pattern SVG_HEIGHT = Pattern.compile("(?:^|\\s)height\\s*=\\s*[\"']\\s*([\\d.]+)\\s*(px)?\\s*[\"']");
+        private static final ThreadLocal<ByteBuffer> BUFFER =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HEADER_BYTES));
+
+        /**
+         * Probes every image of the list in parallel, returns the number of images probed.
+         */
+        public static int probeAll(final Path directoryProject, final List<AssetEntry> assetEntries,
+                                   final BuildMetrics metrics) {
+            final List<AssetEntry> images = new ArrayList<>();
+            for (final AssetEntry assetEntry : assetEntries) {
+                if (assetEntry.category == AssetCategory.IMAGE) images.add(assetEntry);
+            }
+            try {
+                AssetScanner.POOL.submit(() -> images.parallelStream()
+                        .forEach(assetEntry -> probe(directoryProject, assetEntry, metrics))).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                metrics.err().format("Exception: %s%n", e.getCause());
+            }
+            return images.size();
+        }
+
+        public static void probe(final Path directoryProject, final AssetEntry assetEntry, final BuildMetrics metrics) {
+            final ImageObject item = assetEntry.imageObject;
+            item.width = 0;
+            item.height = 0;
+            try (FileChannel channel = FileChannel.open(directoryProject.resolve(assetEntry.file.path),
+                    StandardOpenOption.READ)) {
+                final ByteBuffer buffer = read(channel, 0);
+                final double[] size = buffer.remaining() < 4 ? null : size(channel, buffer);
+                if (size != null && size[0] > 0 && size[1] > 0) {
+                    item.width = size[0];
+                    item.height = size[1];
+                }
+            } catch (IOException e) {
+                metrics.err().format("Exception: %s%n", e);
+            }
+        }
+
+        private static ByteBuffer read(final FileChannel channel, final long position) throws IOException {
+            final ByteBuffer buffer = BUFFER.get();
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) break;
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private static double[] size(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+            final int length = buffer.remaining();
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (length >= 24 && buffer.getLong(0) == 0x89504E470D0A1A0AL) {
+                return new double[]{buffer.getInt(16), buffer.getInt(20)};
+            }
+            if (length >= 3 && (buffer.getShort(0) & 0xFFFF) == 0xFFD8 && (buffer.get(2) & 0xFF) == 0xFF) {
+                return jpegSize(channel);
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (length >= 10 && buffer.get(0) == 'G' && buffer.get(1) == 'I' && buffer.get(2) == 'F') {
+                return new double[]{buffer.getShort(6) & 0xFFFF, buffer.getShort(8) & 0xFFFF};
+            }
+            if (length >= 26 && buffer.get(0) == 'B' && buffer.get(1) == 'M') {
+                if (buffer.getInt(14) == 12) {
+                    return new double[]{buffer.getShort(18) & 0xFFFF, buffer.getShort(20) & 0xFFFF};
+                }
+                return new double[]{Math.abs(buffer.getInt(18)), Math.abs(buffer.getInt(22))};
+            }
+            if (length >= 30 && buffer.getInt(0) == 0x46464952 && buffer.getInt(8) == 0x50424557) {
+                return webpSize(buffer);
+            }
+            return svgSize(buffer);
+        }
+
+        private static double[] webpSize(final ByteBuffer buffer) {
+            final int chunk = buffer.getInt(12);
+            if (chunk == 0x20385056) {
+                return new double[]{buffer.getShort(26) & 0x3FFF, buffer.getShort(28) & 0x3FFF};
+            }
+            if (chunk == 0x4C385056) {
+                final int bits = buffer.getInt(21);
+                return new double[]{(bits & 0x3FFF) + 1, ((bits >> 14) & 0x3FFF) + 1};
+            }
+            if (chunk == 0x58385056) {
+                final int width = (buffer.get(24) & 0xFF) | (buffer.get(25) & 0xFF) << 8 | (buffer.get(26) & 0xFF) << 16;
+                final int height = (buffer.get(27) & 0xFF) | (buffer.get(28) & 0xFF) << 8 | (buffer.get(29) & 0xFF) << 16;
+                return new double[]{width + 1, height + 1};
+            }
+            return null;
+        }
+
+        /**
+         * Walks the segment headers from SOI to the first SOF marker, skipping the segment bodies.
+         */
+        private static double[] jpegSize(final FileChannel channel) throws IOException {
+            long position = 2;
+            for (int segment = 0; segment < MAX_JPEG_SEGMENTS; segment++) {
+                final ByteBuffer buffer = read(channel, position);
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                int offset = 0;
+                while (offset < buffer.remaining() && (buffer.get(offset) & 0xFF) == 0xFF) offset++;
+                if (offset == 0 || offset + 8 > buffer.remaining()) return null;
+                final int marker = buffer.get(offset) & 0xFF;
+                final boolean startOfFrame = marker >= 0xC0 && marker <= 0xCF
+                        && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+                if (startOfFrame) {
+                    return new double[]{buffer.getShort(offset + 6) & 0xFFFF, buffer.getShort(offset + 4) & 0xFFFF};
+                }
+                if (marker == 0xD9 || marker == 0xDA) return null;
+                position += offset + 1 + (buffer.getShort(offset + 1) & 0xFFFF);
+            }
+            return null;
+        }
+
+        private static double[] svgSize(final ByteBuffer buffer) {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            final Matcher tag = SVG_TAG.matcher(new String(bytes, StandardCharsets.ISO_8859_1));
+            if (!tag.find()) return null;
+            final String svg = tag.group();
+            final Matcher width = SVG_WIDTH.matcher(svg);
+            final Matcher height = SVG_HEIGHT.matcher(svg);
+            try {
+                if (width.find() && height.find()) {
+                    return new double[]{Double.parseDouble(width.group(1)), Double.parseDouble(height.group(1))};
+                }
+                final Matcher viewBox = SVG_VIEW_BOX.matcher(svg);
+                if (viewBox.find()) {
+                    return new double[]{Double.parseDouble(viewBox.group(1)), Double.parseDouble(viewBox.group(2))};
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return null;
+        }
+
+        public static String createSizeDartCode(final String fieldFormat, final String name,
+                                                final double width, final double height) {
+            return String.format(fieldFormat, name + SIZE_SUFFIXES[0], width + ";") + "\n"
+                    + String.format(fieldFormat, name + SIZE_SUFFIXES[1], height + ";") + "\n"
+                    + String.format(fieldFormat, name + SIZE_SUFFIXES[2], (width / height) + ";");
+        }
+    }
+
+    private static class JsonItem {
+        public String filePath;
+        public String methodName;
+        public String constName;
+        public String constValue;
+        public String decodeName;
+
+        public String createMethodFunction(final BuildOptions options) {
+            if (filePath == null || methodName == null) return "";
+
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println("  static Future<String> METHOD_NAME() async {".replace("METHOD_NAME", methodName));
+            if (options.jsonCacheBytes >= 0) {
+                printWriter.println("    return await _load('FILE_PATH');".replace("FILE_PATH", DartIdentifier.escape(filePath)));
+            } else {
+                printWriter.println("    return await rootBundle.loadString('FILE_PATH');".replace("FILE_PATH", DartIdentifier.escape(filePath)));
+            }
+            printWriter.println("  }");
+            if (decodeName != null) {
+                printWriter.println("");
+                printWriter.println("  static Future<dynamic> DECODE_NAME() {".replace("DECODE_NAME", decodeName));
+                printWriter.println("    return _decode('FILE_PATH', METHOD_NAME);".replace("FILE_PATH", DartIdentifier.escape(filePath))
+                        .replace("METHOD_NAME", methodName));
+                printWriter.println("  }");
+            }
+            if (constName != null && constValue != null) {
+                printWriter.println("");
+                printWriter.println("  static const CONST_NAME = CONST_VALUE;".replace("CONST_NAME", constName)
+                        .replace("CONST_VALUE", constValue));
+            }
+
+            return stringWriter.toString();
+        }
+    }
+
+    /**
+     * Streaming JSON tokenizer (RFC 8259). It reads through a small buffer and hands every token to
+     * a Handler as soon as it is read, so a file is never held in memory as a whole; only a single
+     * string value is. Errors carry the line and column of the offending character.
+     */
+    private static class JsonStream {
+        private static final int BUFFER_CHARS = 8192;
+        private static final int MAX_DEPTH = 512;
+        public static final char STRING = 's';
+        public static final char NUMBER = 'n';
+        public static final char LITERAL = 'l';
+
+        /**
+         * type is one of { } [ ] : , for structure, STRING for a decoded string or key, NUMBER and
+         * LITERAL for the source text of a number or of true, false and null.
+         */
+        public interface Handler {
+            void token(char type, String text) throws IOException;
+        }
+
+        public static class JsonSyntaxException extends IOException {
+            private static final long serialVersionUID = 1L;
+            public final int line;
+            public final int column;
+
+            public JsonSyntaxException(final String message, final int line, final int column) {
+                super(String.format("%d:%d: %s", line, column, message));
+                this.line = line;
+                this.column = column;
+            }
+        }
+
+        private final Reader reader;
+        private final Handler handler;
+        private final char[] buffer = new char[BUFFER_CHARS];
+        private final StringBuilder text = new StringBuilder();
+        private int position;
+        private int limit;
+        private int line = 1;
+        private int column = 1;
+
+        private JsonStream(final Reader reader, final Handler handler) {
+            this.reader = reader;
+            this.handler = handler;
+        }
+
+        public static void parse(final Reader reader, final Handler handler) throws IOException {
+            final JsonStream stream = new JsonStream(reader, handler);
+            if (stream.peek() == '\uFEFF') stream.next();
+            stream.skipWhitespace();
+            stream.value(0);
+            stream.skipWhitespace();
+            if (stream.peek() != -1) throw stream.error("unexpected content after the JSON value");
+        }
+
+        private int peek() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position];
+        }
+
+        private char next() throws IOException {
+            final int c = peek();
+            if (c == -1) throw error("unexpected end of file");
+            position++;
+            if (c == '\n') {
+                line++;
+                column = 1;
+            } else {
+                column++;
+            }
+            return (char) c;
+        }
+
+        private JsonSyntaxException error(final String message) {
+            return new JsonSyntaxException(message, line, column);
+        }
+
+        private void skipWhitespace() throws IOException {
+            for (int c = peek(); c == ' ' || c == '\t' || c == '\n' || c == '\r'; c = peek()) {
+                next();
+            }
+        }
+
+        private void expect(final char expected) throws IOException {
+            if (peek() != expected) throw unexpected(String.valueOf(expected));
+            next();
+        }
+
+        private JsonSyntaxException unexpected(final String expected) throws IOException {
+            final int c = peek();
+            if (c == -1) return error("unexpected end of file, expected " + expected);
+            return error(String.format("unexpected character '%s', expected %s",
+                    c < ' ' ? String.format("\\u%04x", c) : String.valueOf((char) c), expected));
+        }
+
+        private void value(final int depth) throws IOException {
+            if (depth > MAX_DEPTH) throw error("nesting deeper than " + MAX_DEPTH);
+            final int c = peek();
+            if (c == '{') {
+                object(depth);
+            } else if (c == '[') {
+                array(depth);
+            } else if (c == '"') {
+                handler.token(STRING, string());
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                handler.token(NUMBER, number());
+            } else if (c == 't') {
+                handler.token(LITERAL, literal("true"));
+            } else if (c == 'f') {
+                handler.token(LITERAL, literal("false"));
+            } else if (c == 'n') {
+                handler.token(LITERAL, literal("null"));
+            } else {
+                throw unexpected("a value");
+            }
+        }
+
+        private void object(final int depth) throws IOException {
+            next();
+            handler.token('{', null);
+            skipWhitespace();
+            if (peek() == '}') {
+                next();
+                handler.token('}', null);
+                return;
+            }
+            while (true) {
+                if (peek() != '"') throw unexpected("a string key");
+                handler.token(STRING, string());
+                skipWhitespace();
+                expect(':');
+                handler.token(':', null);
+                skipWhitespace();
+                value(depth + 1);
+                skipWhitespace();
+                if (peek() == '}') {
+                    next();
+                    handler.token('}', null);
+                    return;
+                }
+                if (peek() != ',') throw unexpected("',' or '}'");
+                next();
+                handler.token(',', null);
+                skipWhitespace();
+            }
+        }
+
+        private void array(final int depth) throws IOException {
+            next();
+            handler.token('[', null);
+            skipWhitespace();
+            if (peek() == ']') {
+                next();
+                handler.token(']', null);
+                return;
+            }
+            while (true) {
+                value(depth + 1);
+                skipWhitespace();
+                if (peek() == ']') {
+                    next();
+                    handler.token(']', null);
+                    return;
+                }
+                if (peek() != ',') throw unexpected("',' or ']'");
+                next();
+                handler.token(',', null);
+                skipWhitespace();
+            }
+        }
+
+        private String string() throws IOException {
+            next();
+            text.setLength(0);
+            while (true) {
+                final int c = peek();
+                if (c == -1) throw error("unterminated string");
+                if (c < ' ') throw error("control character in string");
+                next();
+                if (c == '"') return text.toString();
+                if (c != '\\') {
+                    text.append((char) c);
+                    continue;
+                }
+                final int escape = peek();
+                switch (escape) {
+                    case '"': case '\\': case '/': text.append((char) escape); break;
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'n': text.append('\n'); break;
+                    case 'r': text.append('\r'); break;
+                    case 't': text.append('\t'); break;
+                    case 'u':
+                        next();
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            final int digit = Character.digit(peek(), 16);
+                            if (peek() == -1 || digit < 0) throw unexpected("a hex digit");
+                            next();
+                            code = code * 16 + digit;
+                        }
+                        text.append((char) code);
+                        continue;
+                    default:
+                        throw unexpected("an escape character");
+                }
+                next();
+            }
+        }
+
+        private String number() throws IOException {
+            text.setLength(0);
+            if (peek() == '-') text.append(next());
+            if (peek() == '0') {
+                text.append(next());
+            } else {
+                digits();
+            }
+            if (peek() == '.') {
+                text.append(next());
+                digits();
+            }
+            if (peek() == 'e' || peek() == 'E') {
+                text.append(next());
+                if (peek() == '+' || peek() == '-') text.append(next());
+                digits();
+            }
+            return text.toString();
+        }
+
+        private void digits() throws IOException {
+            if (peek() < '0' || peek() > '9') throw unexpected("a digit");
+            while (peek() >= '0' && peek() <= '9') {
+                text.append(next());
+            }
+        }
+
+        private String literal(final String word) throws IOException {
+            for (int i = 0; i < word.length(); i++) {
+                if (peek() != word.charAt(i)) throw unexpected("'" + word + "'");
+                next();
+            }
+            return word;
+        }
+    }
+
+    /**
+     * Validates, minifies and inlines the JSON assets, with --json-check, --json-minify[=folder]
+     * and --json-inline[=bytes], in one streaming pass per file run in parallel on the scanner pool.
+     * A minified copy is written next to the project under the folder, with the same path, and is
+     * bundled and loaded instead of the source; it is rewritten only when older than the source.
+     * A file of at most the given bytes is also turned into a Dart const literal.
+     */
+    private static class JsonAssets {
+        private static final String INVALID_JSON = "Invalid JSON %s:%s";
+        private static final String UNREADABLE_JSON = "Invalid JSON %s: %s";
+
+        /**
+         * Returns false, after printing every error, when a JSON file is not valid.
+         */
+        public static boolean process(final Path directoryProject, final Collection<AssetEntry> assetEntries,
+                                      final BuildOptions options) {
+            final List<AssetEntry> jsonEntries = new ArrayList<>();
+            for (final AssetEntry assetEntry : assetEntries) {
+                if (assetEntry.jsonItem != null && !assetEntry.jsonProcessed) jsonEntries.add(assetEntry);
+            }
+            final Map<String, String> errors = new ConcurrentSkipListMap<>(AssetScanner.PATH_ORDER);
+            try {
+                AssetScanner.POOL.submit(() -> jsonEntries.parallelStream().forEach(assetEntry -> {
+                    final String error = process(directoryProject, assetEntry, options);
+                    if (error != null) {
+                        errors.put(assetEntry.file.path, error);
+                    } else {
+                        assetEntry.jsonProcessed = true;
+                    }
+                })).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                options.err().format("Exception: %s%n", e.getCause());
+                return false;
+            }
+            for (final String error : errors.values()) {
+                options.err().println(error);
+            }
+            return errors.isEmpty();
+        }
+
+        private static String process(final Path directoryProject, final AssetEntry assetEntry,
+                                      final BuildOptions options) {
+            final Path source = directoryProject.resolve(assetEntry.file.path);
+            final DartLiteral dartLiteral = assetEntry.file.size <= options.jsonInlineBytes ? new DartLiteral() : null;
+            try {
+                Path minified = null;
+                if (options.jsonMinifyFolder != null) {
+                    final String bundlePath = options.jsonMinifyFolder + "/" + assetEntry.file.path;
+                    assetEntry.bundlePath = bundlePath;
+                    assetEntry.pubspecLine = String.format(ONE_LINE_RES_PATH_FORMAT, bundlePath);
+                    minified = directoryProject.resolve(bundlePath);
+                    if (Files.exists(minified) && Files.getLastModifiedTime(minified).toMillis()
+                            >= assetEntry.file.lastModified) {
+                        minified = null;
+                    }
+                }
+                if (minified != null) {
+                    Files.createDirectories(minified.getParent());
+                    SectionWriter.writeAtomically(minified, writer -> parse(source, token(new Minifier(writer), dartLiteral)));
+                } else {
+                    parse(source, token(null, dartLiteral));
+                }
+                assetEntry.jsonItem.constValue = dartLiteral != null ? dartLiteral.toString() : null;
+                return null;
+            } catch (JsonStream.JsonSyntaxException e) {
+                return String.format(INVALID_JSON, assetEntry.file.path, e.getMessage());
+            } catch (IOException e) {
+                return String.format(UNREADABLE_JSON, assetEntry.file.path, e);
+            }
+        }
+
+        private static void parse(final Path source, final JsonStream.Handler handler) throws IOException {
+            try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+                JsonStream.parse(reader, handler);
+            }
+        }
+
+        private static JsonStream.Handler token(final JsonStream.Handler first, final JsonStream.Handler second) {
+            if (first == null && second == null) return (type, text) -> { };
+            if (first == null) return second;
+            if (second == null) return first;
+            return (type, text) -> {
+                first.token(type, text);
+                second.token(type, text);
+            };
+        }
+
+        private static class Minifier implements JsonStream.Handler {
+            private final Writer writer;
+
+            Minifier(final Writer writer) {
+                this.writer = writer;
+            }
+
+            @Override
+            public void token(final char type, final String text) throws IOException {
+                if (type == JsonStream.STRING) {
+                    writer.write('"');
+                    for (int i = 0; i < text.length(); i++) {
+                        final char c = text.charAt(i);
+                        if (c == '"' || c == '\\') {
+                            writer.write('\\');
+                            writer.write(c);
+                        } else if (c == '\n') {
+                            writer.write("\\n");
+                        } else if (c < ' ') {
+                            writer.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            writer.write(c);
+                        }
+                    }
+                    writer.write('"');
+                } else if (text != null) {
+                    writer.write(text);
+                } else {
+                    writer.write(type);
+                }
+            }
+        }
+
+        /**
+         * Builds the Dart const expression of a small file: objects are typed <String, dynamic>,
+         * arrays <dynamic>, and an integer outside the 64-bit range becomes a double as jsonDecode
+         * would make it. A key repeated in an object keeps its first place and its last value, as
+         * in the map jsonDecode returns, since a const map can not have the same key twice.
+         */
+        private static class DartLiteral implements JsonStream.Handler {
+            private static final BigInteger MIN_INT = BigInteger.valueOf(Long.MIN_VALUE);
+            private static final BigInteger MAX_INT = BigInteger.valueOf(Long.MAX_VALUE);
+            private final ArrayDeque<Object> containers = new ArrayDeque<>();
+            private final ArrayDeque<String> keys = new ArrayDeque<>();
+            private final StringBuilder literal = new StringBuilder();
+            private boolean expectKey;
+            private String root;
+
+            @Override
+            public void token(final char type, final String text) {
+                switch (type) {
+                    case '{':
+                        containers.push(new LinkedHashMap<String, String>());
+                        keys.push("");
+                        expectKey = true;
+                        break;
+                    case '[':
+                        containers.push(new ArrayList<String>());
+                        break;
+                    case ':':
+                        expectKey = false;
+                        break;
+                    case ',':
+                        expectKey = containers.peek() instanceof Map;
+                        break;
+                    case '}':
+                        keys.pop();
+                        value(objectLiteral(asMap(containers.pop())));
+                        break;
+                    case ']':
+                        value(arrayLiteral(asList(containers.pop())));
+                        break;
+                    case JsonStream.STRING:
+                        if (expectKey) {
+                            keys.pop();
+                            keys.push(text);
+                            expectKey = false;
+                        } else {
+                            value(quote(text));
+                        }
+                        break;
+                    case JsonStream.NUMBER:
+                        final boolean integer = text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0;
+                        if (integer) {
+                            final BigInteger value = new BigInteger(text);
+                            value(value.compareTo(MIN_INT) < 0 || value.compareTo(MAX_INT) > 0 ? text + ".0" : text);
+                        } else {
+                            value(text);
+                        }
+                        break;
+                    default:
+                        value(text);
+                }
+            }
+
+            private void value(final String value) {
+                final Object container = containers.peek();
+                if (container == null) {
+                    root = value;
+                } else if (container instanceof Map) {
+                    asMap(container).put(keys.peek(), value);
+                } else {
+                    asList(container).add(value);
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            private static Map<String, String> asMap(final Object container) {
+                return (Map<String, String>) container;
+            }
+
+            @SuppressWarnings("unchecked")
+            private static List<String> asList(final Object container) {
+                return (List<String>) container;
+            }
+
+            private String objectLiteral(final Map<String, String> entries) {
+                final StringBuilder object = new StringBuilder("<String, dynamic>{");
+                boolean first = true;
+                for (final Map.Entry<String, String> entry : entries.entrySet()) {
+                    if (!first) object.append(", ");
+                    object.append(quote(entry.getKey())).append(": ").append(entry.getValue());
+                    first = false;
+                }
+                return object.append('}').toString();
+            }
+
+            private static String arrayLiteral(final List<String> items) {
+                return "<dynamic>[" + String.join(", ", items) + "]";
+            }
+
+            private String quote(final String text) {
+                literal.setLength(0);
+                appendString(text);
+                return literal.toString();
+            }
+
+            private void appendString(final String text) {
+                literal.append('\'');
+                for (int i = 0; i < text.length(); i++) {
+                    final char c = text.charAt(i);
+                    switch (c) {
+                        case '\\': literal.append("\\\\"); break;
+                        case '\'': literal.append("\\'"); break;
+                        case '$': literal.append("\\$"); break;
+                        case '\n': literal.append("\\n"); break;
+                        case '\r': literal.append("\\r"); break;
+                        case '\t': literal.append("\\t"); break;
+                        default:
+                            if (c < ' ') {
+                                literal.append(String.format("\\u{%x}", (int) c));
+                            } else {
+                                literal.append(c);
+                            }
+                    }
+                }
+                literal.append('\'');
+            }
+
+            @Override
+            public String toString() {
+                return root;
+            }
+        }
+    }
+
+    private static class AssetsResult {
+        public String textAssets;
+        public List<ImageObject> imageObjects;
+        public Map<AssetCategory, List<ImageObject>> pathObjects;
+        public List<JsonItem> jsonItemList;
+        public BuildOptions options;
+        public boolean invalid;
+        public AssetTree assetTree;
+    }
+
+    /**
+     * Manifest of the last successful run, kept under .dart_tool/build_assets/.
+     * It records every asset (path, size, mtime), the mtime of every directory under assets/
+     * and a fingerprint of each generated section. A run whose directories and outputs are
+     * unchanged stops before scanning; otherwise only sections whose fingerprint moved are rewritten.
+     */
+    private static class BuildCache {
+        private static final String CACHE_FOLDER = ".dart_tool/build_assets";
+        private static final String MANIFEST_FILE_NAME = "manifest";
+        private static final String MANIFEST_VERSION = "build-assets-manifest 1";
+        private static final String KEY_OPTIONS = "options";
+        private static final String KEY_DIRECTORY = "dir";
+        private static final String KEY_FILE = "file";
+        private static final String KEY_OUTPUT = "output";
+        private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+        private final Path projectDir;
+        private final String options;
+        private final boolean loaded;
+        private final List<AssetDirectory> directories = new ArrayList<>();
+        private final List<AssetFile> files = new ArrayList<>();
+        private boolean checkFiles;
+        private long writtenAt;
+        private final Map<String, String[]> outputs = new ConcurrentHashMap<>();
+
+        private BuildCache(final Path projectDir, final String options, final boolean loaded) {
+            this.projectDir = projectDir;
+            this.options = options;
+            this.loaded = loaded;
+        }
+
+        /**
+         * One manifest per argument list, so alternating runs such as plain and AssetImage
+         * do not invalidate each other.
+         */
+        private static Path manifestPath(final Path projectDir, final String options) {
+            return projectDir.resolve(CACHE_FOLDER).resolve(MANIFEST_FILE_NAME + "-" + fingerprint(options).substring(0, 12));
+        }
+
+        /**
+         * A cache that is never saved, used to skip rewriting identical sections in watch mode.
+         */
+        public static BuildCache inMemory(final Path projectDir) {
+            return new BuildCache(projectDir, "", false);
+        }
+
+        /**
+         * With checkFiles, the size and mtime of every asset are also compared, for outputs that
+         * depend on the content of the files and not only on their paths.
+         */
+        public static BuildCache load(final Path projectDir, final String options, final boolean checkFiles) {
+            final Path path = manifestPath(projectDir, options);
+            if (!Files.isRegularFile(path)) return new BuildCache(projectDir, options, false);
+
+            final List<String> lines;
+            final long writtenAt;
+            try {
+                writtenAt = Files.getLastModifiedTime(path).toMillis();
+                lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                return new BuildCache(projectDir, options, false);
+            }
+            if (lines.size() < 2
+                    || !MANIFEST_VERSION.equals(lines.get(0))
+                    || !(KEY_OPTIONS + " " + options).equals(lines.get(1))) {
+                return new BuildCache(projectDir, options, false);
+            }
+
+            final BuildCache buildCache = new BuildCache(projectDir, options, true);
+            buildCache.checkFiles = checkFiles;
+            buildCache.writtenAt = writtenAt;
+            for (int i = 2; i < lines.size(); i++) {
+                final String[] fields = lines.get(i).split(" ", 5);
+                if (KEY_FILE.equals(fields[0])) {
+                    final String[] fileFields = lines.get(i).split(" ", 4);
+                    if (!checkFiles || fileFields.length != 4) continue;
+                    final AssetFile file = new AssetFile();
+                    file.size = Long.parseLong(fileFields[1]);
+                    file.lastModified = Long.parseLong(fileFields[2]);
+                    file.path = fileFields[3];
+                    buildCache.files.add(file);
+                } else if (KEY_DIRECTORY.equals(fields[0]) && fields.length == 3) {
+                    final AssetDirectory directory = new AssetDirectory();
+                    directory.lastModified = Long.parseLong(fields[1]);
+                    directory.path = fields[2];
+                    buildCache.directories.add(directory);
+                } else if (KEY_OUTPUT.equals(fields[0]) && fields.length == 5) {
+                    buildCache.outputs.put(fields[4], new String[]{fields[1], fields[2], fields[3]});
+                }
+            }
+            return buildCache;
+        }
+
+        /**
+         * Adding, removing or renaming an entry bumps the mtime of its directory, so matching
+         * directory mtimes mean the asset list is the one recorded in the manifest.
+         */
+        public boolean isUpToDate() {
+            if (outputs.isEmpty() || !areAssetsUnchanged()) return false;
+            for (final String output : outputs.keySet()) {
+                if (!isOutputFileUnchanged(projectDir.resolve(output))) return false;
+            }
+            return true;
+        }
+
+        /**
+         * True when the asset list, and with checkFiles every asset, is the one recorded in the manifest.
+         * As git does for racy index entries, an mtime within MTIME_GRANULARITY_MILLIS of the time the
+         * manifest was written (its own mtime) counts as changed: on a file system with coarse mtimes
+         * a change made after the scan, in the same tick, would keep the recorded mtime.
+         */
+        public boolean areAssetsUnchanged() {
+            if (!loaded || directories.isEmpty()) return false;
+            for (final AssetDirectory directory : directories) {
+                if (isRacy(directory.lastModified)) return false;
+                final Path path = projectDir.resolve(directory.path);
+                try {
+                    if (Files.getLastModifiedTime(path).toMillis() != directory.lastModified) return false;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+            if (checkFiles) {
+                for (final AssetFile file : files) {
+                    if (isRacy(file.lastModified)) return false;
+                    try {
+                        final BasicFileAttributes attributes =
+                                Files.readAttributes(projectDir.resolve(file.path), BasicFileAttributes.class);
+                        if (attributes.size() != file.size
+                                || attributes.lastModifiedTime().toMillis() != file.lastModified) {
+                            return false;
+                        }
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private boolean isRacy(final long lastModified) {
+            return lastModified > writtenAt - MTIME_GRANULARITY_MILLIS;
+        }
+
+        public boolean isOutputUpToDate(final Path path, final String generatedCode) {
+            final String[] recorded = outputs.get(path.toString());
+            return recorded != null
+                    && recorded[0].equals(fingerprint(generatedCode))
+                    && isOutputFileUnchanged(path);
+        }
+
+        private boolean isOutputFileUnchanged(final Path path) {
+            final String[] recorded = outputs.get(path.toString());
+            if (recorded == null) return false;
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return recorded[1].equals(String.valueOf(attributes.lastModifiedTime().toMillis()))
+                        && recorded[2].equals(String.valueOf(attributes.size()));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        public void removeOutput(final Path path) {
+            outputs.remove(path.toString());
+        }
+
+        public void putOutput(final Path path, final String generatedCode) {
+            try {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                outputs.put(path.toString(), new String[]{
+                        fingerprint(generatedCode),
+                        String.valueOf(attributes.lastModifiedTime().toMillis()),
+                        String.valueOf(attributes.size())
+                });
+            } catch (IOException e) {
+                outputs.remove(path.toString());
+            }
+        }
+
+        public void save(final AssetTree assetTree, final BuildMetrics metrics) {
+            final StringBuilder manifest = new StringBuilder();
+            manifest.append(MANIFEST_VERSION).append('\n');
+            manifest.append(KEY_OPTIONS).append(' ').append(options).append('\n');
+            for (final AssetDirectory directory : assetTree.directories) {
+                manifest.append(KEY_DIRECTORY).append(' ')
+                        .append(directory.lastModified).append(' ')
+                        .append(directory.path).append('\n');
+            }
+            for (final AssetFile file : assetTree.files) {
+                manifest.append(KEY_FILE).append(' ')
+                        .append(file.size).append(' ')
+                        .append(file.lastModified).append(' ')
+                        .append(file.path).append('\n');
+            }
+            for (final Map.Entry<String, String[]> output : outputs.entrySet()) {
+                final String[] recorded = output.getValue();
+                manifest.append(KEY_OUTPUT).append(' ')
+                        .append(recorded[0]).append(' ')
+                        .append(recorded[1]).append(' ')
+                        .append(recorded[2]).append(' ')
+                        .append(output.getKey()).append('\n');
+            }
+            try {
+                final Path path = manifestPath(projectDir, options);
+                Files.createDirectories(path.getParent());
+                SectionWriter.writeAtomically(path, writer -> writer.append(manifest));
+            } catch (IOException e) {
+                metrics.err().format("Exception: %s%n", e);
+            }
+        }
+
+        public static String fingerprint(final String content) {
+            try {
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                return toHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public static String toHex(final byte[] hash) {
+            final StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (final byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+    }
+
+    private static class DartFileCreater {
+        private static WriteResult createDartFile(final String fileFullPath,
+                                                  final String fullContent,
+                                                  final String updateContent,
+                                                  final BuildMetrics metrics) {
+            final Path path = Paths.get(fileFullPath);
+            try {
+                return createNewDartFile(path, fullContent, metrics);
+            } catch (Exception e) {
+                if (e instanceof FileAlreadyExistsException) {
+                    return updateDartFile(path, updateContent, metrics);
+                }
+                metrics.err().format("Exception: %s%n", e);
+                return WriteResult.FAILED;
+            }
+        }
+
+        public static String getDartFilePath(final String arg) {
+            final String[] splitArg = arg.split("\\.");
+            final int splitArgLength = splitArg.length;
+            final String fileName = splitArg[splitArgLength - 2] + DART_FILE;
+            final boolean hasPackage = splitArgLength > 2;
+
+            final String filePath = hasPackage ? getLocalFilePath(arg) : fileName;
+            return String.format(PATH_LIB_FORMAT, filePath);
+        }
+    }
+
+    private static class AssetImage {
+        public static String createTemplateContent(final String className,
+                                                   final List<ImageObject> imageObjects) {
+            if (className == null || className.isEmpty()) return "";
+            if (imageObjects == null || imageObjects.isEmpty()) return "";
+
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println("");
+            //start
+            printWriter.println("class CLASS_NAME {".replace("CLASS_NAME", className));
+            printWriter.println(BUILD_DART_TOKEN_START);
+            printWriter.println("");
+            printWriter.println(createAssetImageDartCode(imageObjects));
+            printWriter.println(BUILD_DART_TOKEN_END);
+            printWriter.println("}");
+            printWriter.println("");
+            return stringWriter.toString();
+        }
+
+        public static String createAssetImageDartCode(final List<ImageObject> imageObjects) {
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+
+            for (final ImageObject item : imageObjects) {
+                printWriter.println(item.line);
+            }
+
+            return stringWriter.toString();
+        }
+    }
+
+    private static class JsonFile {
+        private static final String METHOD_NAME_LOAD_JSON_PREFIX = "load";
+        private static final String METHOD_NAME_DECODE_JSON_PREFIX = "decode";
+
+        public static String createTemplateContent(final String className, final List<JsonItem> jsonItemList,
+                                                   final BuildOptions options) {
+            if (className == null || className.isEmpty()) return "";
+            if (jsonItemList == null || jsonItemList.isEmpty()) return "";
+
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println("import 'dart:async' show Future;");
+            if (options.jsonDecoded && options.jsonCacheBytes >= 0) {
+                printWriter.println("import 'dart:convert' show jsonDecode, utf8;");
+            } else if (options.jsonDecoded) {
+                printWriter.println("import 'dart:convert' show jsonDecode;");
+            } else if (options.jsonCacheBytes >= 0) {
+                printWriter.println("import 'dart:convert' show utf8;");
+            }
+            printWriter.println("");
+            printWriter.println("import 'package:flutter/services.dart' show rootBundle;");
+            printWriter.println("");
+
+            printWriter.println("class CLASS_NAME {".replace("CLASS_NAME", className));
+            printWriter.println(BUILD_DART_TOKEN_START);
+            printWriter.println("");
+            printWriter.println(createJsonDartCode(jsonItemList, options));
+            printWriter.println(BUILD_DART_TOKEN_END);
+            printWriter.println("}");
+            printWriter.println("");
+            return stringWriter.toString();
+        }
+
+        private static String createJsonDartCode(final List<JsonItem> jsonItemList, final BuildOptions options) {
             final StringWriter stringWriter = new StringWriter();
             final PrintWriter printWriter = new PrintWriter(stringWriter);
+            if (options.jsonCacheBytes >= 0) {
+                printWriter.println(createCacheFunction(options.jsonCacheBytes, options.jsonDecoded));
+            }
+            if (options.jsonDecoded) {
+                printWriter.println(createDecodeFunction(options.jsonCacheBytes >= 0));
+            }
 
             final int size = jsonItemList.size();
             for (int i = 0; i < size; i++) {
                 final JsonItem item = jsonItemList.get(i);
                 if (i == (size - 1)) {
-                    printWriter.print(item.createMethodFunction());
+                    printWriter.print(item.createMethodFunction(options));
                 } else {
-                    printWriter.println(item.createMethodFunction());
+                    printWriter.println(item.createMethodFunction(options));
                 }
             }
 
             return stringWriter.toString();
         }
+
+        /**
+         * With --json-cache, every loader goes through _load: callers of a file that is being
+         * loaded share the same Future, and loaded files are kept, most recently used last, until
+         * their total UTF-8 size passes the budget in bytes, then the least recently used are dropped,
+         * with their decoded value when there is one. The bytes are loaded with rootBundle.load and
+         * decoded here, so the size is known without encoding the string again.
+         */
+        private static String createCacheFunction(final long budget, final boolean decoded) {
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println("  static const _cacheBudget = BUDGET;".replace("BUDGET", String.valueOf(budget)));
+            printWriter.println("  static final _pending = <String, Future<String>>{};");
+            printWriter.println("  static final _cache = <String, String>{};");
+            printWriter.println("  static final _cacheSizes = <String, int>{};");
+            printWriter.println("  static var _cacheBytes = 0;");
+            printWriter.println("");
+            printWriter.println("  static Future<String> _load(String path) {");
+            printWriter.println("    final cached = _cache.remove(path);");
+            printWriter.println("    if (cached != null) {");
+            printWriter.println("      _cache[path] = cached;");
+            printWriter.println("      return Future.value(cached);");
+            printWriter.println("    }");
+            printWriter.println("    return _pending.putIfAbsent(path, () => rootBundle.load(path).then((data) {");
+            printWriter.println("      final value = utf8.decode(data.buffer.asUint8List(data.offsetInBytes, data.lengthInBytes));");
+            printWriter.println("      _cache[path] = value;");
+            printWriter.println("      _cacheSizes[path] = data.lengthInBytes;");
+            printWriter.println("      _cacheBytes += data.lengthInBytes;");
+            printWriter.println("      while (_cacheBytes > _cacheBudget && _cache.isNotEmpty) {");
+            printWriter.println("        final evicted = _cache.keys.first;");
+            printWriter.println("        _cache.remove(evicted);");
+            printWriter.println("        _cacheBytes -= _cacheSizes.remove(evicted) ?? 0;");
+            if (decoded) printWriter.println("        _decoded.remove(evicted);");
+            printWriter.println("      }");
+            printWriter.println("      return value;");
+            printWriter.println("    }).whenComplete(() {");
+            printWriter.println("      _pending.remove(path);");
+            printWriter.println("    }));");
+            printWriter.println("  }");
+            return stringWriter.toString();
+        }
+
+        /**
+         * With --json-decoded, a file is decoded once and its Future shared by every caller; a failed
+         * load or decode is forgotten so the next call tries again. With --json-cache the decoded
+         * value is dropped with its file, and a call counts as a use of the file.
+         */
+        private static String createDecodeFunction(final boolean cached) {
+            final StringWriter stringWriter = new StringWriter();
+            final PrintWriter printWriter = new PrintWriter(stringWriter);
+            printWriter.println("  static final _decoded = <String, Future<dynamic>>{};");
+            printWriter.println("");
+            printWriter.println("  static Future<dynamic> _decode(String path, Future<String> Function() load) {");
+            if (cached) {
+                printWriter.println("    final cached = _cache.remove(path);");
+                printWriter.println("    if (cached != null) _cache[path] = cached;");
+            }
+            printWriter.println("    return _decoded.putIfAbsent(path, () {");
+            printWriter.println("      final decoded = load().then<dynamic>(jsonDecode);");
+            printWriter.println("      decoded.catchError((Object error) => _decoded.remove(path));");
+            printWriter.println("      return decoded;");
+            printWriter.println("    });");
+            printWriter.println("  }");
+            return stringWriter.toString();
+        }
     }
 }
\ No newline at end of file